@@ -0,0 +1,748 @@
+/*
+    Calimero 2 - A library for KNX network access
+    Copyright (c) 2013 B. Malinowsky
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package tuwien.auto.calimero.tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import tuwien.auto.calimero.DataUnitBuilder;
+import tuwien.auto.calimero.GroupAddress;
+import tuwien.auto.calimero.IndividualAddress;
+import tuwien.auto.calimero.Settings;
+import tuwien.auto.calimero.cemi.CEMI;
+import tuwien.auto.calimero.cemi.CEMIFactory;
+import tuwien.auto.calimero.exception.KNXException;
+import tuwien.auto.calimero.exception.KNXFormatException;
+import tuwien.auto.calimero.exception.KNXIllegalArgumentException;
+import tuwien.auto.calimero.link.medium.KNXMediumSettings;
+import tuwien.auto.calimero.link.medium.RawFrame;
+import tuwien.auto.calimero.link.medium.RawFrameBase;
+import tuwien.auto.calimero.link.medium.RawFrameFactory;
+import tuwien.auto.calimero.log.LogLevel;
+import tuwien.auto.calimero.log.LogManager;
+import tuwien.auto.calimero.log.LogService;
+import tuwien.auto.calimero.log.LogStreamWriter;
+import tuwien.auto.calimero.log.LogWriter;
+import tuwien.auto.calimero.tools.CaptureFormat.TP1Frame;
+
+/**
+ * A tool for Calimero decoding a capture file recorded by {@link NetworkMonitor}.
+ * <p>
+ * CaptureDecoder is a {@link Runnable} tool implementation which decodes the frames of a binary
+ * capture file offline, i.e., without access to a KNX network. The output per frame is the same as
+ * the one of the network monitor, prefixed with the receive time of the frame.
+ * <p>
+ * To use all available processors, the capture file is split into segments at record boundaries.
+ * The segments are decoded in parallel by a number of worker threads, and the decoded output of
+ * the segments is written in the order of the file. Only a limited number of decoded segments is
+ * held in memory at any time, waiting to be written.
+ * <p>
+ * The output can be restricted to a time range, and to frames of a source and/or destination
+ * address. Such a query uses the side index of the capture file, if available, to read only the
+ * parts of the capture which possibly contain matching frames: the index entries are searched
+ * for the time range, and the Bloom filter of an entry tells whether its records possibly contain
+ * the queried addresses. Records not covered by the index are searched sequentially.
+ * <p>
+ * When running this tool from the console, the <code>main</code>- method of this class is invoked,
+ * otherwise use this class in the context appropriate to a {@link Runnable}.<br>
+ * In console mode, the decoded frames, as well as errors and problems during its execution are
+ * written to <code>System.out</code>.
+ *
+ * @author B. Malinowsky
+ */
+public class CaptureDecoder implements Runnable
+{
+	private static final String tool = "CaptureDecoder";
+	private static final String version = "1.0";
+	private static final String sep = System.getProperty("line.separator");
+
+	// upper limit for the size of a segment decoded as one unit
+	private static final long maxSegmentSize = 1024 * 1024;
+	// size of the file window mapped while splitting the file into segments
+	private static final int scanWindow = 64 * 1024 * 1024;
+
+	private static LogService out = LogManager.getManager().getLogService("tools");
+
+	private final Map options = new HashMap();
+
+	private FileChannel ch;
+	private int medium;
+
+	// segment boundaries as file offsets, segment i is [starts[i], ends[i])
+	private long[] starts;
+	private long[] ends;
+	// decoded output per segment, null if not yet decoded or already written
+	private StringBuffer[] decoded;
+	private int nextSegment;
+	private int written;
+	private int maxPending;
+
+	// query, time range in nanoseconds since the epoch and address keys, -1 for any address
+	private boolean query;
+	private long from = Long.MIN_VALUE;
+	private long to = Long.MAX_VALUE;
+	private int source = -1;
+	private int destination = -1;
+
+	/**
+	 * Creates a new CaptureDecoder instance using the supplied options.
+	 * <p>
+	 * The mandatory argument is the name of the capture file. See {@link #main(String[])} for the
+	 * list of options.
+	 *
+	 * @param args list with options
+	 * @throws KNXIllegalArgumentException on unknown/invalid options
+	 */
+	public CaptureDecoder(final String[] args)
+	{
+		try {
+			parseOptions(args);
+		}
+		catch (final KNXIllegalArgumentException e) {
+			throw e;
+		}
+		catch (final RuntimeException e) {
+			throw new KNXIllegalArgumentException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Entry point for running the CaptureDecoder.
+	 * <p>
+	 * Syntax: CaptureDecoder [options] &lt;capture file&gt;
+	 * <p>
+	 * To show the usage message of this tool on the console, supply the command line option -help
+	 * (or -h).<br>
+	 * Command line options are treated case sensitive. Available options:
+	 * <ul>
+	 * <li><code>-help -h</code> show help message</li>
+	 * <li><code>-version</code> show tool/library version and exit</li>
+	 * <li><code>-verbose -v</code> enable verbose status output</li>
+	 * <li><code>-threads</code> <i>number</i> &nbsp;number of decoding threads (default number of
+	 * available processors)</li>
+	 * <li><code>-output -o</code> <i>file</i> &nbsp;write decoded frames to file instead of the
+	 * console</li>
+	 * <li><code>-from</code> <i>time</i> &nbsp;only decode records received at or after the
+	 * local time <i>yyyy-MM-dd HH:mm[:ss[.SSS]]</i> or <i>yyyy-MM-dd</i></li>
+	 * <li><code>-to</code> <i>time</i> &nbsp;only decode records received at or before the time
+	 * </li>
+	 * <li><code>-src</code> <i>address</i> &nbsp;only decode frames sent by the individual
+	 * address (requires medium tp1)</li>
+	 * <li><code>-dst</code> <i>address</i> &nbsp;only decode frames sent to the group or
+	 * individual address (requires medium tp1)</li>
+	 * </ul>
+	 *
+	 * @param args command line options
+	 */
+	public static void main(final String[] args)
+	{
+		final LogWriter w = LogStreamWriter.newUnformatted(LogLevel.WARN, System.out, true, false);
+		out.addWriter(w);
+		try {
+			final CaptureDecoder d = new CaptureDecoder(args);
+			if (d.options.containsKey("verbose"))
+				w.setLogLevel(LogLevel.TRACE);
+			final ShutdownHandler sh = new ShutdownHandler().register();
+			d.run();
+			sh.unregister();
+		}
+		catch (final KNXIllegalArgumentException e) {
+			out.error("parsing options", e);
+		}
+		LogManager.getManager().shutdown(true);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run()
+	{
+		if (options.isEmpty()) {
+			out.log(LogLevel.ALWAYS, "A tool for decoding a KNX network monitor capture", null);
+			showVersion();
+			out.log(LogLevel.ALWAYS, "type -help for help message", null);
+			return;
+		}
+		if (options.containsKey("help")) {
+			showUsage();
+			return;
+		}
+		if (options.containsKey("version")) {
+			showVersion();
+			return;
+		}
+
+		Exception thrown = null;
+		boolean canceled = false;
+		final List workers = new ArrayList();
+		RandomAccessFile file = null;
+		Writer w = null;
+		try {
+			final String name = (String) options.get("file");
+			file = new RandomAccessFile(name, "r");
+			ch = file.getChannel();
+			readHeader();
+
+			final int threads = ((Integer) options.get("threads")).intValue();
+			final List ranges = new ArrayList();
+			long indexed = -1;
+			if (query) {
+				if ((source != -1 || destination != -1) && medium != KNXMediumSettings.MEDIUM_TP1)
+					throw new KNXFormatException("address query requires a capture of medium tp1");
+				indexed = select(name + ".idx", ranges);
+			}
+			split(indexed != -1 ? indexed : CaptureFormat.headerSize, threads * 4, ranges);
+			starts = new long[ranges.size() / 2];
+			ends = new long[starts.length];
+			for (int i = 0; i < starts.length; i++) {
+				starts[i] = ((Long) ranges.get(2 * i)).longValue();
+				ends[i] = ((Long) ranges.get(2 * i + 1)).longValue();
+			}
+			decoded = new StringBuffer[starts.length];
+			maxPending = threads * 2;
+			out.info(name + ": " + decoded.length + " segments, " + threads + " threads");
+
+			for (int i = 0; i < threads; i++) {
+				final Worker t = new Worker(i);
+				workers.add(t);
+				t.start();
+			}
+			w = createOutput();
+			writeInOrder(w);
+		}
+		catch (final IOException e) {
+			thrown = e;
+		}
+		catch (final KNXException e) {
+			thrown = e;
+		}
+		catch (final RuntimeException e) {
+			thrown = e;
+		}
+		catch (final InterruptedException e) {
+			canceled = true;
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			for (int i = 0; i < workers.size(); i++)
+				((Thread) workers.get(i)).interrupt();
+			try {
+				try {
+					// close an output file, but keep System.out open
+					if (w != null && options.containsKey("output"))
+						w.close();
+					else if (w != null)
+						w.flush();
+				}
+				finally {
+					if (file != null)
+						file.close();
+				}
+			}
+			catch (final IOException e) {
+				if (thrown == null)
+					thrown = e;
+			}
+			onCompletion(thrown, canceled);
+		}
+	}
+
+	/**
+	 * Called by this tool on completion.
+	 * <p>
+	 *
+	 * @param thrown the thrown exception if operation completed due to an raised exception,
+	 *        <code>null</code> otherwise
+	 * @param canceled whether the operation got canceled before its planned end
+	 */
+	protected void onCompletion(final Exception thrown, final boolean canceled)
+	{
+		if (canceled)
+			out.info(tool + " stopped");
+		if (thrown != null)
+			out.error(thrown.getMessage() != null ? thrown.getMessage() : thrown.getClass()
+					.getName());
+	}
+
+	private void readHeader() throws IOException, KNXException
+	{
+		final ByteBuffer header = ByteBuffer.allocate(CaptureFormat.headerSize);
+		while (header.hasRemaining() && ch.read(header, header.position()) != -1)
+			;
+		header.flip();
+		if (header.remaining() < CaptureFormat.headerSize || header.getInt() != CaptureFormat.magic)
+			throw new KNXFormatException("no KNX capture file");
+		final int v = header.getShort() & 0xffff;
+		if (v > CaptureFormat.formatVersion)
+			throw new KNXFormatException("unsupported capture format version " + v);
+		medium = header.getShort() & 0xffff;
+		out.info("capture started " + new Date(header.getLong()) + ", KNX medium " + medium);
+	}
+
+	/**
+	 * Selects the parts of the capture file possibly containing records matching the query, using
+	 * the capture index.
+	 * <p>
+	 * The highest timestamps of the index entries are turned into a non-decreasing sequence by a
+	 * running maximum, and the lowest timestamps into a non-decreasing sequence by a running
+	 * minimum from the end. This allows a binary search for the first entry, and ends the search
+	 * at the first entry after which no record is within the time range, even if the records of
+	 * several lines are not strictly in time order.
+	 *
+	 * @param name file name of the capture index
+	 * @param ranges list to add the selected file ranges to, as start and end offset
+	 * @return file offset after the records covered by the index, or -1 if there is no usable index
+	 * @throws IOException on I/O error accessing the index file
+	 */
+	private long select(final String name, final List ranges) throws IOException
+	{
+		final File f = new File(name);
+		if (!f.exists()) {
+			out.warn("no capture index " + name + ", searching the whole capture");
+			return -1;
+		}
+		final RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			final FileChannel c = file.getChannel();
+			final MappedByteBuffer buf = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+			if (buf.limit() < CaptureFormat.indexHeaderSize
+					|| buf.getInt() != CaptureFormat.indexMagic
+					|| (buf.getShort() & 0xffff) > CaptureFormat.indexVersion) {
+				out.warn("unsupported capture index " + name + ", searching the whole capture");
+				return -1;
+			}
+			final int bloomSize = buf.getShort() & 0xffff;
+			final int entrySize = CaptureFormat.indexEntrySize + bloomSize;
+			final int entries = (buf.limit() - CaptureFormat.indexHeaderSize) / entrySize;
+
+			final long[] max = new long[entries];
+			final long[] min = new long[entries];
+			for (int i = 0; i < entries; i++) {
+				final int at = CaptureFormat.indexHeaderSize + i * entrySize;
+				min[i] = buf.getLong(at + 16);
+				max[i] = buf.getLong(at + 24);
+				if (i > 0)
+					max[i] = Math.max(max[i], max[i - 1]);
+			}
+			for (int i = entries - 2; i >= 0; i--)
+				min[i] = Math.min(min[i], min[i + 1]);
+			// first entry with records at or after the start of the time range
+			int low = 0;
+			int high = entries;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (max[mid] < from)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			int selected = 0;
+			for (int i = low; i < entries && min[i] <= to; i++) {
+				final int at = CaptureFormat.indexHeaderSize + i * entrySize;
+				if (buf.getLong(at + 16) > to || buf.getLong(at + 24) < from)
+					continue;
+				final int bloom = at + CaptureFormat.indexEntrySize;
+				if (source != -1 && !CaptureFormat.containsKey(buf, bloom, bloomSize, source))
+					continue;
+				if (destination != -1
+						&& !CaptureFormat.containsKey(buf, bloom, bloomSize, destination))
+					continue;
+				final long start = buf.getLong(at);
+				final long end = buf.getLong(at + 8);
+				final int last = ranges.size() - 1;
+				// merge with the previous range if adjacent
+				if (last > 0 && ((Long) ranges.get(last)).longValue() == start
+						&& end - ((Long) ranges.get(last - 1)).longValue() <= maxSegmentSize)
+					ranges.set(last, new Long(end));
+				else {
+					ranges.add(new Long(start));
+					ranges.add(new Long(end));
+				}
+				selected++;
+			}
+			out.info("capture index: " + selected + " of " + entries + " segments selected");
+			return entries > 0 ? buf.getLong(CaptureFormat.indexHeaderSize + (entries - 1)
+					* entrySize + 8) : CaptureFormat.headerSize;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Splits the records of the capture file, starting at the supplied file offset, into at
+	 * least <code>segments</code> segments of approximately equal size, following the record
+	 * chain to find record boundaries.
+	 * <p>
+	 *
+	 * @param start file offset of the first record
+	 * @param segments minimum number of segments
+	 * @param ranges list to add the segments to, as start and end offset
+	 * @throws IOException on I/O error accessing the capture file
+	 */
+	private void split(final long start, final int segments, final List ranges)
+		throws IOException
+	{
+		final long size = ch.size();
+		final long target = Math.max(1, Math.min(maxSegmentSize, (size - start) / segments));
+		final List bounds = new ArrayList();
+
+		long pos = start;
+		long next = pos;
+		long window = 0;
+		MappedByteBuffer buf = null;
+		while (pos + CaptureFormat.recordHeaderSize <= size) {
+			if (buf == null || pos + CaptureFormat.recordHeaderSize > window + buf.limit()) {
+				window = pos;
+				buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(scanWindow, size - pos));
+			}
+			final int length = buf.getShort((int) (pos - window)) & 0xffff;
+			if (length == 0)
+				break;
+			if (pos + CaptureFormat.recordHeaderSize + length > size) {
+				out.warn("last record truncated at offset " + pos);
+				break;
+			}
+			if (pos >= next) {
+				bounds.add(new Long(pos));
+				next = pos + target;
+			}
+			pos += CaptureFormat.recordHeaderSize + length;
+		}
+		bounds.add(new Long(pos));
+		for (int i = 0; i < bounds.size() - 1; i++) {
+			ranges.add(bounds.get(i));
+			ranges.add(bounds.get(i + 1));
+		}
+	}
+
+	private void writeInOrder(final Writer w) throws IOException, InterruptedException
+	{
+		for (int i = 0; i < decoded.length; i++) {
+			final StringBuffer sb;
+			synchronized (this) {
+				while (decoded[i] == null)
+					wait();
+				sb = decoded[i];
+				decoded[i] = null;
+				written = i + 1;
+				notifyAll();
+			}
+			w.write(sb.toString());
+		}
+	}
+
+	// returns the next segment to decode, or -1 if all segments are taken
+	private synchronized int takeSegment() throws InterruptedException
+	{
+		// limit decoded segments waiting to be written
+		while (nextSegment < decoded.length && nextSegment >= written + maxPending)
+			wait();
+		return nextSegment < decoded.length ? nextSegment++ : -1;
+	}
+
+	private synchronized void completeSegment(final int segment, final StringBuffer sb)
+	{
+		decoded[segment] = sb;
+		notifyAll();
+	}
+
+	private StringBuffer decode(final int segment, final SimpleDateFormat time) throws IOException
+	{
+		final long start = starts[segment];
+		final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, start, ends[segment]
+				- start);
+		final StringBuffer sb = new StringBuffer(buf.limit() * 2);
+		byte[] frame = new byte[64];
+		while (buf.hasRemaining()) {
+			final int length = buf.getShort() & 0xffff;
+			final int type = buf.get() & 0xff;
+			final int line = buf.get() & 0xff;
+			final long timestamp = buf.getLong();
+			if (frame.length < length)
+				frame = new byte[length];
+			buf.get(frame, 0, length);
+			if (query && !matches(type, frame, length, timestamp))
+				continue;
+
+			sb.append(time.format(new Date(timestamp / 1000000)));
+			if (line != 0)
+				sb.append(" line ").append(line);
+			sb.append(" ");
+			if (type == CaptureFormat.FRAME)
+				decodeFrame(frame, length, sb);
+			else if (type == CaptureFormat.GAP && length == 8)
+				decodeGap(frame, sb);
+			else
+				sb.append("unknown record type ").append(type);
+			sb.append(sep);
+		}
+		return sb;
+	}
+
+	// returns whether a record is within the time range and has the queried addresses
+	private boolean matches(final int type, final byte[] f, final int length, final long timestamp)
+	{
+		if (timestamp < from || timestamp > to)
+			return false;
+		if (source == -1 && destination == -1)
+			return true;
+		if (type != CaptureFormat.FRAME)
+			return false;
+		// a TP1 L-Data frame in the cEMI busmonitor frame
+		final int raw = TP1Frame.offset(f);
+		if (!TP1Frame.isData(f, length, raw))
+			return false;
+		if (source != -1 && source != TP1Frame.source(f, raw))
+			return false;
+		return destination == -1 || destination == CaptureFormat.destinationKey(f, raw);
+	}
+
+	// same output as NetworkMonitor.onGap
+	private static void decodeGap(final byte[] data, final StringBuffer sb)
+	{
+		long duration = 0;
+		for (int i = 0; i < 8; i++)
+			duration = duration << 8 | data[i] & 0xff;
+		sb.append("gap of ").append(duration / 1000000).append(" ms without monitoring");
+	}
+
+	// same output as NetworkMonitor.onIndication
+	private void decodeFrame(final byte[] frame, final int length, final StringBuffer sb)
+	{
+		final CEMI cemi;
+		try {
+			cemi = CEMIFactory.create(frame, 0, length);
+		}
+		catch (final KNXFormatException e) {
+			sb.append("invalid frame: ").append(e.getMessage());
+			return;
+		}
+		sb.append(cemi.toString());
+		try {
+			final RawFrame raw = RawFrameFactory.create(medium, cemi.getPayload(), 0);
+			if (raw != null) {
+				sb.append(": ").append(raw.toString());
+				if (raw instanceof RawFrameBase) {
+					final RawFrameBase f = (RawFrameBase) raw;
+					sb.append(": ").append(DataUnitBuilder.decode(f.getTPDU(), f.getDestination()));
+				}
+			}
+		}
+		catch (final KNXFormatException e) {
+			// same as the monitor, show the cEMI frame without decoded raw frame
+		}
+	}
+
+	private Writer createOutput() throws IOException
+	{
+		final String file = (String) options.get("output");
+		if (file == null)
+			return new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)), 64 * 1024);
+	}
+
+	/**
+	 * Reads all options in the specified array, and puts relevant options into the supplied options
+	 * map.
+	 * <p>
+	 * On options not relevant for decoding (like <code>help</code>), this method will take
+	 * appropriate action (like showing usage information). On occurrence of such an option, other
+	 * options will be ignored. On unknown options, a KNXIllegalArgumentException is thrown.
+	 *
+	 * @param args array with command line options
+	 */
+	private void parseOptions(final String[] args)
+	{
+		if (args.length == 0)
+			return;
+
+		// add defaults
+		options.put("threads", new Integer(Runtime.getRuntime().availableProcessors()));
+
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (isOption(arg, "-help", "-h")) {
+				options.put("help", null);
+				return;
+			}
+			if (isOption(arg, "-version", null)) {
+				options.put("version", null);
+				return;
+			}
+			if (isOption(arg, "-verbose", "-v"))
+				options.put("verbose", null);
+			else if (isOption(arg, "-threads", null))
+				options.put("threads", Integer.decode(args[++i]));
+			else if (isOption(arg, "-output", "-o"))
+				options.put("output", args[++i]);
+			else if (isOption(arg, "-from", null))
+				from = parseTime(args[++i]);
+			else if (isOption(arg, "-to", null))
+				to = parseTime(args[++i]);
+			else if (isOption(arg, "-src", null))
+				source = parseAddress(args[++i], false);
+			else if (isOption(arg, "-dst", null))
+				destination = parseAddress(args[++i], true);
+			else if (!options.containsKey("file"))
+				options.put("file", arg);
+			else
+				throw new KNXIllegalArgumentException("unknown option " + arg);
+		}
+		if (!options.containsKey("file"))
+			throw new KNXIllegalArgumentException("no capture file specified");
+		if (((Integer) options.get("threads")).intValue() < 1)
+			throw new KNXIllegalArgumentException("number of threads has to be at least 1");
+		query = from != Long.MIN_VALUE || to != Long.MAX_VALUE || source != -1
+				|| destination != -1;
+	}
+
+	// returns the time in nanoseconds since the epoch
+	private static long parseTime(final String time)
+	{
+		final String[] patterns = { "yyyy-MM-dd HH:mm:ss.SSS", "yyyy-MM-dd HH:mm:ss",
+			"yyyy-MM-dd HH:mm", "yyyy-MM-dd" };
+		final String s = time.replace('T', ' ');
+		for (int i = 0; i < patterns.length; i++) {
+			final SimpleDateFormat f = new SimpleDateFormat(patterns[i]);
+			f.setLenient(false);
+			final ParsePosition p = new ParsePosition(0);
+			final Date d = f.parse(s, p);
+			if (d != null && p.getIndex() == s.length())
+				return d.getTime() * 1000000L;
+		}
+		throw new KNXIllegalArgumentException("invalid time " + time
+				+ ", use yyyy-MM-dd HH:mm[:ss[.SSS]]");
+	}
+
+	// returns the address key as used by the capture index
+	private static int parseAddress(final String address, final boolean destination)
+	{
+		try {
+			if (destination && address.indexOf('/') != -1)
+				return new GroupAddress(address).getRawAddress() | CaptureFormat.groupKey;
+			final int a = new IndividualAddress(address).getRawAddress();
+			return destination ? a | CaptureFormat.individualKey : a;
+		}
+		catch (final KNXFormatException e) {
+			throw new KNXIllegalArgumentException("invalid address " + address, e);
+		}
+	}
+
+	private static boolean isOption(final String arg, final String longOpt, final String shortOpt)
+	{
+		return arg.equals(longOpt) || shortOpt != null && arg.equals(shortOpt);
+	}
+
+	private static void showUsage()
+	{
+		final StringBuffer sb = new StringBuffer();
+		sb.append("usage: ").append(tool).append(" [options] <capture file>").append(sep);
+		sb.append("options:").append(sep);
+		sb.append("  -help -h                show this help message").append(sep);
+		sb.append("  -version                show tool/library version and exit").append(sep);
+		sb.append("  -verbose -v             enable verbose status output").append(sep);
+		sb.append("  -threads <number>       number of decoding threads (default number of "
+				+ "processors)").append(sep);
+		sb.append("  -output -o <file>       write decoded frames to file").append(sep);
+		sb.append("  -from <time>            only records at or after local time "
+				+ "yyyy-MM-dd HH:mm[:ss[.SSS]]").append(sep);
+		sb.append("  -to <time>              only records at or before local time").append(sep);
+		sb.append("  -src <address>          only frames from the individual address (tp1)")
+				.append(sep);
+		sb.append("  -dst <address>          only frames to the group or individual address (tp1)")
+				.append(sep);
+		out.log(LogLevel.ALWAYS, sb.toString(), null);
+	}
+
+	private static void showVersion()
+	{
+		out.log(LogLevel.ALWAYS,
+				tool + " version " + version + " using " + Settings.getLibraryHeader(false), null);
+	}
+
+	private final class Worker extends Thread
+	{
+		Worker(final int id)
+		{
+			super(tool + " worker " + id);
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			// SimpleDateFormat is not thread-safe, every worker uses its own
+			final SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+			try {
+				for (int segment = takeSegment(); segment != -1; segment = takeSegment()) {
+					StringBuffer sb;
+					try {
+						sb = decode(segment, time);
+					}
+					catch (final IOException e) {
+						sb = new StringBuffer("segment " + segment + ": " + e.getMessage() + sep);
+					}
+					catch (final RuntimeException e) {
+						out.error("decoding segment " + segment, e);
+						sb = new StringBuffer("segment " + segment + ": " + e + sep);
+					}
+					completeSegment(segment, sb);
+				}
+			}
+			catch (final InterruptedException e) {}
+		}
+	}
+
+	private static final class ShutdownHandler extends Thread
+	{
+		private final Thread t = Thread.currentThread();
+
+		ShutdownHandler register()
+		{
+			Runtime.getRuntime().addShutdownHook(this);
+			return this;
+		}
+
+		void unregister()
+		{
+			Runtime.getRuntime().removeShutdownHook(this);
+		}
+
+		public void run()
+		{
+			t.interrupt();
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+    Calimero 2 - A library for KNX network access
+    Copyright (c) 2013 B. Malinowsky
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package tuwien.auto.calimero.tools;
+
+import java.nio.ByteBuffer;
+
+import tuwien.auto.calimero.DataUnitBuilder;
+import tuwien.auto.calimero.link.medium.KNXMediumSettings;
+
+/**
+ * The binary capture file format and its side index, shared by the tools writing and reading
+ * captures.
+ * <p>
+ * Capture file format, all values in big-endian byte order:
+ * <ul>
+ * <li>file header (16 bytes): magic "KNXC" (4 bytes), format version (2 bytes), KNX medium
+ * (2 bytes, see {@link KNXMediumSettings#getMedium()}), capture start in milliseconds since the
+ * epoch (8 bytes)</li>
+ * <li>a sequence of records, each with a record header (12 bytes) followed by the record data:
+ * data length (2 bytes), record type (1 byte), line identifier (1 byte), timestamp in
+ * nanoseconds since the epoch (8 bytes)</li>
+ * <li>a record with a data length of 0 marks the end of the records; this is also what a
+ * preallocated but unused part of the file contains</li>
+ * </ul>
+ * The data of a {@link #FRAME} record is the cEMI frame as received from the monitor link. A
+ * {@link #GAP} record marks the reconnect of a closed monitor link, its data is the duration
+ * the line was not monitored in nanoseconds (8 bytes); the record timestamp is the time of
+ * reconnecting.
+ * <p>
+ * Index file format (file name of the capture with suffix ".idx"), all values in big-endian
+ * byte order:
+ * <ul>
+ * <li>file header (16 bytes): magic "KNXI" (4 bytes), format version (2 bytes), size of a Bloom
+ * filter in bytes (2 bytes), max. records per segment (4 bytes), reserved (4 bytes)</li>
+ * <li>a sequence of segment entries: file offset of the first record (8 bytes), file offset
+ * after the last record (8 bytes), lowest and highest record timestamp in nanoseconds since
+ * the epoch (8 bytes each), number of records (4 bytes), Bloom filter</li>
+ * </ul>
+ * The Bloom filter keys of a TP1 data frame are its source address, and its destination
+ * address flagged with {@link #groupKey} for a group address, or {@link #individualKey} for an
+ * individual address. A key sets {@link #hashes} bits, bit <i>i</i> of the filter is bit
+ * <i>i</i> % 8 of byte <i>i</i> / 8. Segments of other media have all bits set.
+ *
+ * @author B. Malinowsky
+ */
+final class CaptureFormat
+{
+	static final int FRAME = 0;
+	static final int GAP = 1;
+
+	static final int magic = 0x4B4E5843;
+	static final int formatVersion = 1;
+	static final int headerSize = 16;
+	static final int recordHeaderSize = 12;
+
+	static final int indexMagic = 0x4B4E5849;
+	static final int indexVersion = 1;
+	static final int indexHeaderSize = 16;
+	// size of a segment entry without Bloom filter
+	static final int indexEntrySize = 36;
+	static final int segmentRecords = 4096;
+	static final int bloomBits = 16384;
+	static final int hashes = 3;
+
+	// Bloom filter keys of destination addresses
+	static final int groupKey = 0x10000;
+	static final int individualKey = 0x20000;
+
+	private CaptureFormat()
+	{}
+
+	/**
+	 * Returns the Bloom filter key of the destination address of a TP1 data frame.
+	 * <p>
+	 *
+	 * @param f buffer containing the cEMI frame
+	 * @param raw offset of the TP1 frame, see {@link TP1Frame#offset(byte[])}
+	 * @return the key
+	 */
+	static int destinationKey(final byte[] f, final int raw)
+	{
+		return TP1Frame.destination(f, raw)
+				| (TP1Frame.isGroupDestination(f, raw) ? groupKey : individualKey);
+	}
+
+	/**
+	 * Sets the bits of a key in a Bloom filter.
+	 * <p>
+	 *
+	 * @param bloom the Bloom filter, its size is a power of 2
+	 * @param key the key
+	 */
+	static void addKey(final byte[] bloom, final int key)
+	{
+		final int shift = shift(bloom.length);
+		for (int i = 0; i < hashes; i++) {
+			final int bit = bit(key, i, shift);
+			bloom[bit >>> 3] |= 1 << (bit & 7);
+		}
+	}
+
+	/**
+	 * Returns whether all bits of a key are set in a Bloom filter, i.e., whether the filter
+	 * possibly contains the key.
+	 * <p>
+	 *
+	 * @param buf buffer containing the Bloom filter
+	 * @param bloom offset of the Bloom filter in <code>buf</code>
+	 * @param size size of the Bloom filter in bytes, a power of 2
+	 * @param key the key
+	 * @return <code>false</code> if the filter does not contain the key, <code>true</code>
+	 *         otherwise
+	 */
+	static boolean containsKey(final ByteBuffer buf, final int bloom, final int size,
+		final int key)
+	{
+		final int shift = shift(size);
+		for (int i = 0; i < hashes; i++) {
+			final int bit = bit(key, i, shift);
+			if ((buf.get(bloom + (bit >>> 3)) & 1 << (bit & 7)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	// shift to take the upper bits of a hash as bit position in a filter of size bytes
+	private static int shift(final int size)
+	{
+		int shift = 32;
+		for (int bits = size * 8; bits > 1; bits >>>= 1)
+			shift--;
+		return shift;
+	}
+
+	// bit position of hash i of a key, by double hashing
+	private static int bit(final int key, final int i, final int shift)
+	{
+		final int h1 = key * 0x9E3779B1;
+		final int h2 = key * 0x85EBCA6B | 1;
+		return (h1 + i * h2) >>> shift;
+	}
+
+	/**
+	 * Field access for a TP1 frame contained in a cEMI busmonitor frame, working directly on the
+	 * bytes of the cEMI frame.
+	 * <p>
+	 * The <code>raw</code> argument is the offset of the TP1 frame within the cEMI frame, see
+	 * {@link #offset(byte[])}. Accessors of L-Data fields require {@link #isData(byte[], int, int)}
+	 * to be true.
+	 */
+	static final class TP1Frame
+	{
+		private TP1Frame()
+		{}
+
+		// offset of the raw frame in a cEMI busmonitor frame, skipping additional info
+		static int offset(final byte[] cemi)
+		{
+			return 2 + (cemi[1] & 0xff);
+		}
+
+		// returns true for a standard or extended L-Data frame, not for acks or polls
+		static boolean isData(final byte[] f, final int length, final int raw)
+		{
+			return length - raw >= 7 && (f[raw] & 0x53) == 0x10;
+		}
+
+		static boolean isStandard(final byte[] f, final int raw)
+		{
+			return (f[raw] & 0x80) != 0;
+		}
+
+		static boolean isRepeated(final byte[] f, final int raw)
+		{
+			// repeat flag is 0 for a repeated frame
+			return (f[raw] & 0x20) == 0;
+		}
+
+		static int priority(final byte[] f, final int raw)
+		{
+			return (f[raw] >> 2) & 0x03;
+		}
+
+		static int source(final byte[] f, final int raw)
+		{
+			final int i = isStandard(f, raw) ? raw + 1 : raw + 2;
+			return (f[i] & 0xff) << 8 | f[i + 1] & 0xff;
+		}
+
+		static int destination(final byte[] f, final int raw)
+		{
+			final int i = isStandard(f, raw) ? raw + 3 : raw + 4;
+			return (f[i] & 0xff) << 8 | f[i + 1] & 0xff;
+		}
+
+		static boolean isGroupDestination(final byte[] f, final int raw)
+		{
+			return (f[isStandard(f, raw) ? raw + 5 : raw + 1] & 0x80) != 0;
+		}
+
+		static int tpdu(final byte[] f, final int raw)
+		{
+			return isStandard(f, raw) ? raw + 6 : raw + 7;
+		}
+
+		static int tpduLength(final byte[] f, final int raw)
+		{
+			return (isStandard(f, raw) ? f[raw + 5] & 0x0f : f[raw + 6] & 0xff) + 1;
+		}
+
+		/**
+		 * Returns the application layer service of the frame, coded like in
+		 * {@link DataUnitBuilder#getAPDUService(byte[])}.
+		 * <p>
+		 *
+		 * @return the APCI service code, or -1 if the frame contains no application layer PDU
+		 */
+		static int service(final byte[] f, final int length, final int raw)
+		{
+			final int t = tpdu(f, raw);
+			// transport layer control PDUs have no APCI
+			if (tpduLength(f, raw) < 2 || t + 1 >= length || (f[t] & 0x80) != 0)
+				return -1;
+			final int apci = (f[t] & 0x03) << 8 | f[t + 1] & 0xff;
+			final int apci4 = apci & 0x3c0;
+			// user memory and escape services use the full 10 bit APCI
+			return apci4 == 0x2c0 || apci4 == 0x3c0 ? apci : apci4;
+		}
+	}
+}
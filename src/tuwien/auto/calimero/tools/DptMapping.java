@@ -0,0 +1,222 @@
+/*
+    Calimero 2 - A library for KNX network access
+    Copyright (c) 2013 B. Malinowsky
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package tuwien.auto.calimero.tools;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import tuwien.auto.calimero.GroupAddress;
+import tuwien.auto.calimero.dptxlator.DPTXlator;
+import tuwien.auto.calimero.dptxlator.TranslatorTypes;
+import tuwien.auto.calimero.exception.KNXException;
+import tuwien.auto.calimero.exception.KNXFormatException;
+import tuwien.auto.calimero.log.LogManager;
+import tuwien.auto.calimero.log.LogService;
+
+/**
+ * Assigns datapoint types to group addresses, for the tools translating group values into
+ * engineering units.
+ * <p>
+ * The datapoint types are loaded from a mapping file with one group address per line, in one
+ * of the formats:
+ * <ul>
+ * <li>group address and DPT ID, separated by white space, comma or semicolon, e.g.,
+ * <code>1/2/3 9.001</code></li>
+ * <li>ETS group address export (CSV), using the address and datapoint type column, e.g.,
+ * <code>"1/2/3";...;"DPST-9-1"</code></li>
+ * </ul>
+ * Lines without group address or datapoint type are ignored.<br>
+ * All group addresses of the same DPT share one translator. Lookup is by raw group address
+ * into a table holding the translator index.
+ *
+ * @author B. Malinowsky
+ */
+final class DptMapping
+{
+	private static LogService out = LogManager.getManager().getLogService("tools");
+
+	// translator index + 1 by raw group address, 0 for no translator
+	private final short[] index = new short[0x10000];
+	private final DPTXlator[] xlators;
+	private final int mappings;
+
+	/**
+	 * Loads the datapoint types assigned to group addresses from a mapping file.
+	 * <p>
+	 * Mappings of datapoint types without translator are skipped with a warning.
+	 *
+	 * @param file mapping file name
+	 * @throws IOException on error reading the mapping file
+	 */
+	DptMapping(final String file) throws IOException
+	{
+		final List ids = new ArrayList();
+		final List translators = new ArrayList();
+		final BufferedReader r = new BufferedReader(new FileReader(file));
+		int count = 0;
+		try {
+			for (String s = r.readLine(); s != null; s = r.readLine()) {
+				final String[] tokens = s.split("[\\s,;]+");
+				int address = -1;
+				String dpt = null;
+				for (int i = 0; i < tokens.length && dpt == null; i++) {
+					final String token = unquote(tokens[i]);
+					if (address == -1) {
+						address = groupAddress(token);
+						// plain DPT IDs only directly after the address, not in descriptions
+						if (address != -1 && i + 1 < tokens.length)
+							dpt = dptId(unquote(tokens[i + 1]), true);
+					}
+					else
+						dpt = dptId(token, false);
+				}
+				if (address == -1 || dpt == null)
+					continue;
+				int k = ids.indexOf(dpt);
+				if (k == -1) {
+					try {
+						translators.add(TranslatorTypes.createTranslator(0, dpt));
+					}
+					catch (final KNXException e) {
+						out.warn("no translator for DPT " + dpt + " of " + new GroupAddress(
+								address) + ", " + e.getMessage());
+						continue;
+					}
+					ids.add(dpt);
+					k = ids.size() - 1;
+					if (k == Short.MAX_VALUE - 1)
+						throw new IOException("too many datapoint types");
+				}
+				index[address] = (short) (k + 1);
+				count++;
+			}
+		}
+		finally {
+			r.close();
+		}
+		xlators = (DPTXlator[]) translators.toArray(new DPTXlator[translators.size()]);
+		mappings = count;
+	}
+
+	/**
+	 * Returns the translator of the datapoint type assigned to a group address.
+	 * <p>
+	 * The translator is shared by all group addresses of that datapoint type, and not thread
+	 * safe.
+	 *
+	 * @param group raw group address
+	 * @return the translator, or <code>null</code> if no datapoint type is assigned
+	 */
+	DPTXlator translator(final int group)
+	{
+		final int k = index[group] - 1;
+		return k < 0 ? null : xlators[k];
+	}
+
+	/**
+	 * Returns the group value translated by a translator, or <code>null</code> if the data does
+	 * not fit the datapoint type.
+	 * <p>
+	 *
+	 * @param t the translator
+	 * @param asdu the group value, of exact length
+	 * @return the translated value, or <code>null</code>
+	 */
+	static String translate(final DPTXlator t, final byte[] asdu)
+	{
+		try {
+			t.setData(asdu);
+			return t.getValue();
+		}
+		catch (final RuntimeException e) {
+			return null;
+		}
+	}
+
+	public String toString()
+	{
+		return mappings + " group addresses using " + xlators.length + " datapoint types";
+	}
+
+	// returns the raw group address, or -1 if token is not a 3-level group address
+	private static int groupAddress(final String token)
+	{
+		// main/middle/sub, a 2-level address is more likely part of a name than an address
+		int separators = 0;
+		for (int i = 0; i < token.length(); i++)
+			if (token.charAt(i) == '/')
+				separators++;
+		if (separators != 2 || token.charAt(0) == '/')
+			return -1;
+		try {
+			return new GroupAddress(token).getRawAddress();
+		}
+		catch (final KNXFormatException e) {
+			return -1;
+		}
+	}
+
+	// returns the DPT ID in the format used by translators, e.g. "9.001", or null; a plain DPT
+	// ID is only accepted if plain is true
+	private static String dptId(final String token, final boolean plain)
+	{
+		final String main;
+		final String sub;
+		if (token.startsWith("DPST-")) {
+			final int i = token.indexOf('-', 5);
+			if (i == -1)
+				return null;
+			main = token.substring(5, i);
+			sub = token.substring(i + 1);
+		}
+		else if (token.startsWith("DPT-")) {
+			// main type only, subtypes of a main type share the same encoding
+			main = token.substring(4);
+			sub = "1";
+		}
+		else if (plain) {
+			final int i = token.indexOf('.');
+			if (i <= 0)
+				return null;
+			main = token.substring(0, i);
+			sub = token.substring(i + 1);
+		}
+		else
+			return null;
+		try {
+			final int m = Integer.parseInt(main);
+			final int s = Integer.parseInt(sub);
+			return m + "." + (s < 10 ? "00" : s < 100 ? "0" : "") + s;
+		}
+		catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String unquote(final String s)
+	{
+		if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"')
+			return s.substring(1, s.length() - 1);
+		return s;
+	}
+}
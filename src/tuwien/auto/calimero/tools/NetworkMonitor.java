@@ -19,17 +19,49 @@
 
 package tuwien.auto.calimero.tools;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.zip.GZIPOutputStream;
 
 import tuwien.auto.calimero.CloseEvent;
 import tuwien.auto.calimero.DataUnitBuilder;
 import tuwien.auto.calimero.FrameEvent;
+import tuwien.auto.calimero.GroupAddress;
+import tuwien.auto.calimero.IndividualAddress;
 import tuwien.auto.calimero.Settings;
+import tuwien.auto.calimero.cemi.CEMI;
+import tuwien.auto.calimero.cemi.CEMIFactory;
+import tuwien.auto.calimero.dptxlator.DPTXlator;
 import tuwien.auto.calimero.exception.KNXException;
+import tuwien.auto.calimero.exception.KNXFormatException;
 import tuwien.auto.calimero.exception.KNXIllegalArgumentException;
 import tuwien.auto.calimero.knxnetip.KNXnetIPConnection;
 import tuwien.auto.calimero.link.KNXNetworkMonitor;
@@ -42,12 +74,14 @@ import tuwien.auto.calimero.link.medium.PLSettings;
 import tuwien.auto.calimero.link.medium.RFSettings;
 import tuwien.auto.calimero.link.medium.RawFrame;
 import tuwien.auto.calimero.link.medium.RawFrameBase;
+import tuwien.auto.calimero.link.medium.RawFrameFactory;
 import tuwien.auto.calimero.link.medium.TPSettings;
 import tuwien.auto.calimero.log.LogLevel;
 import tuwien.auto.calimero.log.LogManager;
 import tuwien.auto.calimero.log.LogService;
 import tuwien.auto.calimero.log.LogStreamWriter;
 import tuwien.auto.calimero.log.LogWriter;
+import tuwien.auto.calimero.tools.CaptureFormat.TP1Frame;
 
 /**
  * A tool for Calimero allowing monitoring of KNX network messages.
@@ -72,6 +106,47 @@ import tuwien.auto.calimero.log.LogWriter;
  * this tool from the console, the <code>main</code> method of this class is executed, otherwise use
  * it in the context appropriate to a {@link Runnable}.
  * <p>
+ * Frames are not processed on the receiver thread of the monitor link. The link listener only
+ * copies the received frame into a bounded, preallocated ring buffer and returns; a dedicated
+ * consumer thread takes frames from that buffer, decodes them, and writes the output. If the
+ * consumer falls behind and the buffer is full, frames are dropped and counted.
+ * <p>
+ * Several KNX lines can be monitored at the same time, by supplying more than one host or serial
+ * port. Every line has its own monitor link and receive buffer; the consumer thread merges the
+ * frames of all lines in the order of their receive time into one output stream.
+ * <p>
+ * Optionally, all received frames are recorded to a binary capture file, see
+ * {@link CaptureWriter} for the file format. A capture keeps the complete cEMI frame together with
+ * its receive time, and can be decoded later. A sparse side index allows to query a capture by
+ * time and address without reading the whole file, see {@link CaptureIndex}.
+ * <p>
+ * A frame filter expression restricts monitoring to frames of interest, see {@link FrameFilter}
+ * for the syntax. The filter is compiled once, and evaluated on the frame bytes before any frame
+ * is decoded or recorded.
+ * <p>
+ * For long-running monitoring, the output can be written to a rolling log file. The log is split
+ * into segments by size or time interval, closed segments are compressed in the background, and
+ * only a limited number of compressed segments is kept.
+ * <p>
+ * In statistics mode, the monitor shows periodic summaries of the bus traffic instead of the
+ * individual frames, like frame rates per address and the estimated bus load. For large
+ * installations, the top talkers mode reports the most active sources and destinations over a
+ * sliding time window, using approximate counting with fixed memory.
+ * <p>
+ * To find out which part of the monitor falls behind, the monitor can report the time frames
+ * spend in the receive buffer, in decoding, and in output, together with the receive buffer
+ * depths, see {@link StageProfile}. Profiling is cheap enough to stay enabled during regular
+ * monitoring.
+ * <p>
+ * If the output cannot keep up with the received frames, an overload policy reduces the shown
+ * frames depending on the receive buffer depth, by coalescing repeated frames, sampling frames
+ * per source, and dropping frames, see {@link OverloadPolicy}. Omitted frames are counted and
+ * reported.
+ * <p>
+ * An anomaly detector watches the traffic of every line over a sliding window, and reports
+ * telegram storms, senders exceeding a telegram rate, excessive repeat or NAK rates, devices stuck
+ * repeating, and silence of a line, see {@link AnomalyDetector}.
+ * <p>
  * To quit a monitor running on a console, use a user interrupt for termination ( <code>^C</code>
  * for example).
  *
@@ -83,26 +158,60 @@ public class NetworkMonitor implements Runnable
 	private static final String version = "1.1";
 	private static final String sep = System.getProperty("line.separator");
 
+	// default number of frames buffered between monitor link and consumer thread
+	private static final int defaultQueueSize = 1024;
+	// default time in ms a frame is held back to merge the frames of several lines in order
+	private static final int defaultReorderWindow = 100;
+	// default size limit of a rolling log segment in MB
+	private static final int defaultLogSize = 16;
+	// default number of compressed rolling log segments to keep
+	private static final int defaultLogRetain = 10;
+	// default sliding window for top talkers in seconds
+	private static final int defaultTopWindow = 300;
+	// initial and default max. wait time between reconnect attempts
+	private static final int minBackoff = 1000;
+	private static final int defaultMaxBackoff = 60;
+	private static final String defaultPreTrigger = "30s";
+	private static final String defaultPostTrigger = "10s";
+	// default rate of frames shown per source address when sampling on overload
+	private static final int defaultSampleRate = 10;
+	// anomaly thresholds, with their defaults, see AnomalyDetector
+	private static final String[] anomalyKeys = { "window", "storm", "sender", "repeat", "nak",
+		"stuck", "silence" };
+	private static final int[] defaultAnomalyThresholds = { 10, 40, 10, 20, 5, 10, 60 };
+	// exit status if the monitor quit on an anomaly
+	private static final int anomalyExitStatus = 2;
+
 	private static LogService out = LogManager.getManager().getLogService("tools");
 
 	private final Map options = new HashMap();
-	private KNXNetworkMonitor m;
-
-	private final LinkListener l = new LinkListener()
-	{
-		public void indication(final FrameEvent e)
-		{
-			NetworkMonitor.this.onIndication(e);
-		}
 
-		public void linkClosed(final CloseEvent e)
-		{
-			out.info("network monitor closed (" + e.getReason() + ")");
-			synchronized (NetworkMonitor.this) {
-				NetworkMonitor.this.notify();
-			}
-		}
-	};
+	// the monitored lines, every line hands over its frames to the consumer thread
+	private volatile Line[] lines = new Line[0];
+	private FrameMerger merger;
+	private Consumer consumer;
+	private CaptureWriter capture;
+	private FrameFilter filter;
+	private LogWriter logWriter;
+	// statistics per line
+	private BusStatistics[] stats;
+	private TopTalkers topTalkers;
+	private Correlator correlator;
+	private TriggerCapture trigger;
+	private FanOut fanOut;
+	private GroupValues groupValues;
+	private StructuredOutput structured;
+	private TelegramLog telegramLog;
+	private StageProfile profile;
+	private OverloadPolicy overload;
+	// anomaly detection per line
+	private AnomalyDetector[] detectors;
+	// number of anomalies detected, only written by consumer
+	private volatile long anomalies;
+	// only written by consumer
+	private volatile long rejected;
+	// offset to convert System.nanoTime() to nanoseconds since the epoch
+	private long timeBase;
 
 	/**
 	 * Creates a new NetworkMonitor instance using the supplied options.
@@ -130,7 +239,7 @@ public class NetworkMonitor implements Runnable
 	 * Entry point for running the NetworkMonitor.
 	 * <p>
 	 * An IP host or port identifier has to be supplied, specifying the endpoint for the KNX network
-	 * access.<br>
+	 * access. To monitor several lines at once, supply several hosts or port identifiers.<br>
 	 * To show the usage message of this tool on the console, supply the command line option -help
 	 * (or -h).<br>
 	 * Command line options are treated case sensitive. Available options for network monitoring:
@@ -145,6 +254,73 @@ public class NetworkMonitor implements Runnable
 	 * <li><code>-serial -s</code> use FT1.2 serial communication</li>
 	 * <li><code>-medium -m</code> <i>id</i> &nbsp;KNX medium [tp0|tp1|p110|p132|rf] (defaults to
 	 * tp1)</li>
+	 * <li><code>-queue</code> <i>frames</i> &nbsp;size of the receive buffer in frames (default
+	 * 1024)</li>
+	 * <li><code>-wait</code> <i>strategy</i> &nbsp;how the consumer thread waits for frames
+	 * [block|sleep|yield|spin] (default block)</li>
+	 * <li><code>-reorder</code> <i>ms</i> &nbsp;max. time a frame is held back to merge the frames
+	 * of several lines in receive order (default 100)</li>
+	 * <li><code>-capture</code> <i>file</i> &nbsp;record all frames to a binary capture file, with
+	 * a side index <i>file</i>.idx for time and address queries</li>
+	 * <li><code>-quiet -q</code> do not decode and show the received frames</li>
+	 * <li><code>-filter</code> <i>expression</i> &nbsp;only process frames matching the filter
+	 * expression, for example "dst in 1/2/0-1/2/255 and apci=GroupValueWrite" (requires medium
+	 * tp1)</li>
+	 * <li><code>-format</code> <i>format</i> &nbsp;output format of received frames
+	 * [text|json|csv|ets], JSON Lines and CSV records have the fields time, line, type, src, dst,
+	 * prio, rep, apci, data, and value (default text, json and csv require medium tp1); ets writes
+	 * an ETS telegram log (XML), which can be opened in the ETS bus monitor</li>
+	 * <li><code>-output -o</code> <i>file</i> &nbsp;write JSON Lines, CSV, or ETS output to file
+	 * instead of the console</li>
+	 * <li><code>-dpt</code> <i>file</i> &nbsp;decode group values using the datapoint types
+	 * assigned to group addresses in file, e.g., an ETS group address export</li>
+	 * <li><code>-log</code> <i>file</i> &nbsp;write output to a rolling log file</li>
+	 * <li><code>-logsize</code> <i>MB</i> &nbsp;rotate log file on exceeding size (default 16, 0
+	 * for no size limit)</li>
+	 * <li><code>-loginterval</code> <i>minutes</i> &nbsp;rotate log file after time interval
+	 * (default 0, no interval)</li>
+	 * <li><code>-logretain</code> <i>number</i> &nbsp;number of compressed log files to keep
+	 * (default 10)</li>
+	 * <li><code>-stats</code> <i>seconds</i> &nbsp;show bus statistics of every line in the given
+	 * interval instead of the received frames (requires medium tp1)</li>
+	 * <li><code>-top</code> <i>number</i> &nbsp;show the approximate top senders and destinations
+	 * instead of the received frames (requires medium tp1)</li>
+	 * <li><code>-window</code> <i>seconds</i> &nbsp;sliding window for top senders and destinations
+	 * (default 300)</li>
+	 * <li><code>-trigger</code> <i>expression</i> &nbsp;trigger capture: keep the recent frames in
+	 * memory, and write them to a new capture file, named after the capture file and the trigger
+	 * time, when a frame matches the trigger filter expression (requires -capture and medium
+	 * tp1)</li>
+	 * <li><code>-pretrigger</code> <i>n|ns</i> &nbsp;number of frames, or seconds if followed by
+	 * 's', captured before the trigger (default 30s)</li>
+	 * <li><code>-posttrigger</code> <i>n|ns</i> &nbsp;number of frames, or seconds if followed by
+	 * 's', captured after the trigger (default 10s)</li>
+	 * <li><code>-serve</code> <i>port</i> &nbsp;publish frames to subscribers connecting to the TCP
+	 * port on the loopback interface; a subscriber sends a filter expression line (or an empty
+	 * line) and receives the matching frames as JSON Lines (requires medium tp1)</li>
+	 * <li><code>-servedrop</code> <i>policy</i> &nbsp;if the queue of a slow subscriber is full,
+	 * drop frames for that subscriber, or disconnect it [frames|disconnect] (default frames)</li>
+	 * <li><code>-latency</code> <i>seconds</i> &nbsp;show response times of group reads and
+	 * management requests in the given interval instead of the received frames (requires medium
+	 * tp1)</li>
+	 * <li><code>-profile</code> <i>seconds</i> &nbsp;show processing times of the monitor stages
+	 * and receive buffer depths in the given interval, and on exit</li>
+	 * <li><code>-overload</code> <i>policy</i> &nbsp;most restrictive policy to reduce the shown
+	 * frames if the output falls behind, applied depending on the receive buffer depth
+	 * [coalesce|sample|drop] (requires medium tp1)</li>
+	 * <li><code>-sample</code> <i>k</i> &nbsp;show one in <i>k</i> frames of a source address
+	 * when sampling (default 10)</li>
+	 * <li><code>-anomaly</code> <i>thresholds</i> &nbsp;detect and report traffic anomalies, with
+	 * a comma separated list of thresholds <i>key=value</i>, a threshold not listed keeps its
+	 * default: window length in seconds (window=10), telegrams/s of a line (storm=40) and of a
+	 * source (sender=10), percentage of repeated telegrams (repeat=20) and of negative
+	 * acknowledgments (nak=5), repeated telegrams of a source in the window (stuck=10), seconds
+	 * without telegrams (silence=60) (requires medium tp1)</li>
+	 * <li><code>-anomalyexit</code> quit on the first anomaly detected, the exit status is 2</li>
+	 * <li><code>-reconnect</code> supervise the monitor links and reconnect a closed link, the
+	 * time a line was not monitored is marked as gap in the output and capture file</li>
+	 * <li><code>-maxbackoff</code> <i>seconds</i> &nbsp;max. wait time between reconnect attempts,
+	 * the wait time starts at 1 second and doubles with every failed attempt (default 60)</li>
 	 * </ul>
 	 *
 	 * @param args command line options for network monitoring
@@ -153,20 +329,33 @@ public class NetworkMonitor implements Runnable
 	{
 		final LogWriter w = new LogStreamWriter(LogLevel.WARN, System.out, true, false);
 		out.addWriter(w);
+		int status = 0;
 		try {
 			// if listener is null, we create our default one
 			final NetworkMonitor m = new NetworkMonitor(args);
+			// keep structured output on the console free of log output
+			final LogWriter console = m.options.containsKey("format")
+					&& !m.options.containsKey("output") ? new LogStreamWriter(LogLevel.WARN,
+					System.err, true, false) : w;
+			if (console != w) {
+				out.removeWriter(w);
+				out.addWriter(console);
+			}
 			if (m.options.containsKey("verbose"))
-				w.setLogLevel(LogLevel.TRACE);
+				console.setLogLevel(LogLevel.TRACE);
 
 			final ShutdownHandler sh = m.new ShutdownHandler().register();
 			m.run();
 			sh.unregister();
+			if (m.options.containsKey("anomalyexit") && m.anomalies > 0)
+				status = anomalyExitStatus;
 		}
 		catch (final KNXIllegalArgumentException e) {
 			out.error("parsing options", e);
 		}
 		LogManager.getManager().shutdown(true);
+		if (status != 0)
+			System.exit(status);
 	}
 
 	/* (non-Javadoc)
@@ -198,7 +387,7 @@ public class NetworkMonitor implements Runnable
 			});*/
 			// just wait for the network monitor to quit
 			synchronized (this) {
-				while (m != null && m.isOpen())
+				while (isActive() && !(options.containsKey("anomalyexit") && anomalies > 0))
 					wait(500);
 			}
 		}
@@ -243,15 +432,124 @@ public class NetworkMonitor implements Runnable
 			return;
 		}
 
-		m = createMonitor();
+		if (options.containsKey("log")) {
+			final String file = (String) options.get("log");
+			final long size = ((Integer) options.get("logsize")).longValue() * 1024 * 1024;
+			final long interval = ((Integer) options.get("loginterval")).longValue() * 60 * 1000;
+			final int retain = ((Integer) options.get("logretain")).intValue();
+			try {
+				final OutputStream os = new RollingOutputStream(file, size, interval, retain);
+				logWriter = new LogStreamWriter(LogLevel.INFO, os, true, true);
+				out.addWriter(logWriter);
+			}
+			catch (final IOException e) {
+				throw new KNXException("open log file " + file + ": " + e.getMessage());
+			}
+		}
+		final KNXMediumSettings medium = (KNXMediumSettings) options.get("medium");
+		timeBase = System.currentTimeMillis() * 1000000L - System.nanoTime();
+		final List endpoints = (List) options.get("endpoints");
+		if (options.containsKey("trigger"))
+			trigger = new TriggerCapture((FrameFilter) options.get("trigger"),
+					(String) options.get("capture"), medium.getMedium(), timeBase,
+					TriggerCapture.window((String) options.get("pretrigger")),
+					TriggerCapture.window((String) options.get("posttrigger")), endpoints.size());
+		else if (options.containsKey("capture")) {
+			final String file = (String) options.get("capture");
+			try {
+				capture = new CaptureWriter(file, medium.getMedium());
+			}
+			catch (final IOException e) {
+				throw new KNXException("open capture file " + file + ": " + e.getMessage());
+			}
+		}
+		if (options.containsKey("format")) {
+			final int format = ((Integer) options.get("format")).intValue();
+			final String file = (String) options.get("output");
+			try {
+				final WritableByteChannel ch = file != null ? new FileOutputStream(file)
+						.getChannel() : new FileOutputStream(FileDescriptor.out).getChannel();
+				if (format == TelegramLog.ETS) {
+					final StringBuffer connection = new StringBuffer();
+					for (int i = 0; i < endpoints.size(); i++) {
+						final Object ep = endpoints.get(i);
+						connection.append(i > 0 ? ", " : "").append(
+								ep instanceof InetAddress ? ((InetAddress) ep).getHostAddress()
+										: ep.toString());
+					}
+					telegramLog = new TelegramLog(ch, file != null, medium.getMedium(),
+							connection.toString(), System.nanoTime() + timeBase);
+				}
+				else
+					structured = new StructuredOutput(ch, file != null, format);
+			}
+			catch (final IOException e) {
+				throw new KNXException("open output file " + file + ": " + e.getMessage());
+			}
+		}
+		filter = (FrameFilter) options.get("filter");
+		if (options.containsKey("dpt")) {
+			final String file = (String) options.get("dpt");
+			try {
+				groupValues = new GroupValues(file);
+				out.info("datapoint types: " + groupValues);
+			}
+			catch (final IOException e) {
+				throw new KNXException("read datapoint types " + file + ": " + e.getMessage());
+			}
+		}
+		if (options.containsKey("stats")) {
+			stats = new BusStatistics[endpoints.size()];
+			for (int i = 0; i < stats.length; i++)
+				stats[i] = new BusStatistics(((Integer) options.get("stats")).longValue()
+						* 1000000000L);
+		}
+		if (options.containsKey("latency"))
+			correlator = new Correlator(((Integer) options.get("latency")).longValue()
+					* 1000000000L);
+		if (options.containsKey("top"))
+			topTalkers = new TopTalkers(((Integer) options.get("top")).intValue(),
+					((Integer) options.get("window")).longValue() * 1000000000L);
+		final int queueSize = ((Integer) options.get("queue")).intValue();
+		final long reorder = ((Integer) options.get("reorder")).longValue() * 1000000;
+		merger = new FrameMerger(endpoints.size(), queueSize,
+				((Integer) options.get("wait")).intValue(), reorder);
+		if (options.containsKey("profile"))
+			profile = new StageProfile(endpoints.size(),
+					((Integer) options.get("profile")).longValue() * 1000000000L);
+		if (options.containsKey("anomaly")) {
+			detectors = new AnomalyDetector[endpoints.size()];
+			for (int i = 0; i < detectors.length; i++)
+				detectors[i] = new AnomalyDetector(i, (int[]) options.get("anomaly"));
+		}
+		if (options.containsKey("overload"))
+			overload = new OverloadPolicy(endpoints.size(),
+					((Integer) options.get("overload")).intValue(),
+					((Integer) options.get("sample")).intValue());
+		final Line[] l = new Line[endpoints.size()];
+		for (int i = 0; i < l.length; i++)
+			l[i] = new Line(i, endpoints.get(i), merger.rings[i]);
+		lines = l;
+		if (options.containsKey("serve")) {
+			final int port = ((Integer) options.get("serve")).intValue();
+			try {
+				fanOut = new FanOut(port, options.containsKey("servedisconnect"));
+			}
+			catch (final IOException e) {
+				throw new KNXException("open server port " + port + ": " + e.getMessage());
+			}
+			fanOut.start();
+		}
+		consumer = new Consumer();
+		consumer.start();
+
 		// ??? add the log writer for monitor log events
 		//LogManager.getManager().addWriter(m.getName(), w);
-
-		// on console we want to have all possible information, so enable
-		// decoding of a received raw frame by the monitor link
-		m.setDecodeRawFrames(true);
-		// listen to monitor link events
-		m.addMonitorListener(l);
+		for (int i = 0; i < l.length; i++)
+			l[i].open();
+		if (options.containsKey("reconnect"))
+			for (int i = 0; i < l.length; i++)
+				l[i].supervise();
 	}
 
 	/**
@@ -260,35 +558,48 @@ public class NetworkMonitor implements Runnable
 	 */
 	public void quit()
 	{
-		if (m != null && m.isOpen()) {
-			m.close();
-			synchronized (this) {
-				notifyAll();
-			}
+		final Line[] l = lines;
+		for (int i = 0; i < l.length; i++)
+			l[i].close();
+		synchronized (this) {
+			notifyAll();
 		}
+		stopConsumer();
+		closeLog();
 	}
 
 	/**
 	 * Called by this tool on receiving a monitor indication frame.
 	 * <p>
+	 * This method is invoked by the consumer thread of this tool, not by the receiver thread of the
+	 * monitor link.
 	 *
 	 * @param e the frame event
 	 */
 	protected void onIndication(final FrameEvent e)
 	{
 		final StringBuffer sb = new StringBuffer();
+		final Line[] l = lines;
+		for (int i = 0; l.length > 1 && i < l.length; i++)
+			if (l[i].monitor() == e.getSource())
+				sb.append("line ").append(i).append(": ");
 		sb.append(e.getFrame().toString());
-		// since we specified decoding of raw frames during monitor initialization,
-		// we can get the decoded raw frame here
+		// the consumer thread decoded the raw frame for us
 		// but note, that on decoding error null is returned
 		final RawFrame raw = ((MonitorFrameEvent) e).getRawFrame();
 		if (raw != null) {
 			sb.append(": ").append(raw.toString());
 			if (raw instanceof RawFrameBase) {
 				final RawFrameBase f = (RawFrameBase) raw;
-				sb.append(": ").append(DataUnitBuilder.decode(f.getTPDU(), f.getDestination()));
+				final byte[] tpdu = f.getTPDU();
+				sb.append(": ").append(DataUnitBuilder.decode(tpdu, f.getDestination()));
+				if (groupValues != null && f.getDestination() instanceof GroupAddress)
+					groupValues.decode(((GroupAddress) f.getDestination()).getRawAddress(), tpdu,
+							sb);
 			}
 		}
+		if (profile != null)
+			profile.decoded();
 		out.log(LogLevel.ALWAYS, sb.toString(), null);
 	}
 
@@ -309,20 +620,457 @@ public class NetworkMonitor implements Runnable
 					.getName());
 	}
 
+	/**
+	 * Records an entry taken from the receive buffer to the capture file, if capturing is enabled.
+	 * <p>
+	 * On I/O errors, capturing is stopped.
+	 *
+	 * @param type record type, see {@link CaptureWriter}
+	 * @param line line identifier
+	 * @param data buffer containing the cEMI frame or gap duration
+	 * @param length length of the data in <code>data</code>
+	 * @param timestamp receive time of the entry, obtained by {@link System#nanoTime()}
+	 */
+	private void record(final int type, final int line, final byte[] data, final int length,
+		final long timestamp)
+	{
+		if (capture == null)
+			return;
+		try {
+			capture.write(type, line, timestamp + timeBase, data, 0, length);
+		}
+		catch (final IOException e) {
+			out.error("capture stopped", e);
+			closeCapture();
+		}
+	}
+
+	/**
+	 * Adds an entry taken from the receive buffer to the trigger capture, if enabled.
+	 * <p>
+	 * On I/O errors, trigger capture is stopped.
+	 *
+	 * @param type entry type, a capture record type
+	 * @param line line identifier
+	 * @param data buffer containing the cEMI frame or gap duration
+	 * @param length length of the data in <code>data</code>
+	 * @param timestamp receive time of the entry, obtained by {@link System#nanoTime()}
+	 */
+	private void triggerCapture(final int type, final int line, final byte[] data,
+		final int length, final long timestamp)
+	{
+		if (trigger == null)
+			return;
+		try {
+			trigger.add(type, line, data, length, timestamp);
+		}
+		catch (final IOException e) {
+			out.error("trigger capture stopped", e);
+			closeTrigger();
+		}
+	}
+
+	private void closeTrigger()
+	{
+		final TriggerCapture t = trigger;
+		trigger = null;
+		if (t == null)
+			return;
+		try {
+			t.close();
+		}
+		catch (final IOException e) {
+			out.error("closing trigger capture file", e);
+		}
+	}
+
+	private void closeCapture()
+	{
+		final CaptureWriter w = capture;
+		capture = null;
+		if (w == null)
+			return;
+		try {
+			final long size = w.size();
+			w.close();
+			out.info("captured " + w.records + " records, " + size + " bytes");
+		}
+		catch (final IOException e) {
+			out.error("closing capture file", e);
+		}
+	}
+
+	/**
+	 * Writes an entry taken from the receive buffer to the structured output or telegram log, if
+	 * enabled.
+	 * <p>
+	 * On I/O errors, output is stopped.
+	 *
+	 * @param type entry type, a capture record type
+	 * @param line line identifier
+	 * @param data buffer containing the cEMI frame or gap duration
+	 * @param length length of the data in <code>data</code>
+	 * @param timestamp receive time of the entry, obtained by {@link System#nanoTime()}
+	 */
+	private void write(final int type, final int line, final byte[] data, final int length,
+		final long timestamp)
+	{
+		if (telegramLog != null && type == CaptureFormat.FRAME) {
+			try {
+				telegramLog.telegram(timestamp + timeBase, data, length);
+			}
+			catch (final IOException e) {
+				out.error("telegram log stopped", e);
+				closeOutput();
+			}
+		}
+		if (structured == null)
+			return;
+		try {
+			if (type == CaptureFormat.GAP)
+				structured.gap(line, timestamp + timeBase, gapDuration(data));
+			else
+				structured.frame(line, timestamp + timeBase, data, length, groupValues);
+		}
+		catch (final IOException e) {
+			out.error("structured output stopped", e);
+			closeOutput();
+		}
+	}
+
+	private void closeOutput()
+	{
+		final StructuredOutput o = structured;
+		structured = null;
+		final TelegramLog l = telegramLog;
+		telegramLog = null;
+		try {
+			if (o != null)
+				o.close();
+			if (l != null)
+				l.close(System.nanoTime() + timeBase);
+		}
+		catch (final IOException e) {
+			out.error("closing output", e);
+		}
+	}
+
+	/**
+	 * Applies the overload policy to a frame taken from the receive buffer, if enabled.
+	 * <p>
+	 * Before the frame, the end of an overload and the end of repetitions of the previous frame
+	 * are written to the output.
+	 *
+	 * @param line the line which received the frame
+	 * @param frame buffer containing the cEMI frame
+	 * @param length length of the cEMI frame in <code>frame</code>
+	 * @param timestamp receive time of the frame, obtained by {@link System#nanoTime()}
+	 * @param quiet <code>true</code> if no frames are shown as text
+	 * @return <code>true</code> if the frame is shown, <code>false</code> if it is omitted
+	 */
+	private boolean admit(final Line line, final byte[] frame, final int length,
+		final long timestamp, final boolean quiet)
+	{
+		if (overload == null)
+			return true;
+		final String s = overload.update(line.id, line.ring.depth(), line.ring.lengths.length,
+				timestamp);
+		if (s != null)
+			out.warn(line + ": " + s);
+		final long omitted = overload.endedOmitted();
+		if (omitted > 0 && structured != null) {
+			try {
+				structured.omitted(line.id, timestamp + timeBase, omitted);
+			}
+			catch (final IOException e) {
+				out.error("structured output stopped", e);
+				closeOutput();
+			}
+		}
+		final boolean show = overload.admit(line.id, frame, length, timestamp);
+		repeated(line.id, overload.endedRepetitions(line.id), overload.repeated(line.id), quiet);
+		return show;
+	}
+
+	/**
+	 * Writes the number of repetitions of the last frame shown, which were omitted due to
+	 * overload.
+	 * <p>
+	 *
+	 * @param line line identifier
+	 * @param repetitions number of repetitions, nothing is written for 0
+	 * @param timestamp receive time of the last repetition, obtained by {@link System#nanoTime()}
+	 * @param quiet <code>true</code> if no frames are shown as text
+	 */
+	private void repeated(final int line, final int repetitions, final long timestamp,
+		final boolean quiet)
+	{
+		if (repetitions == 0)
+			return;
+		if (structured != null) {
+			try {
+				structured.repeated(line, timestamp + timeBase, repetitions);
+			}
+			catch (final IOException e) {
+				out.error("structured output stopped", e);
+				closeOutput();
+			}
+		}
+		if (!quiet)
+			onRepeated(line, repetitions);
+	}
+
+	/**
+	 * Decodes a frame taken from the receive buffer and passes it on to {@link #onIndication}.
+	 * <p>
+	 *
+	 * @param line the line which received the frame
+	 * @param frame buffer containing the cEMI frame
+	 * @param length length of the cEMI frame in <code>frame</code>
+	 */
+	private void dispatch(final Line line, final byte[] frame, final int length)
+	{
+		final CEMI cemi;
+		try {
+			cemi = CEMIFactory.create(frame, 0, length);
+		}
+		catch (final KNXFormatException e) {
+			out.warn("discard monitor frame: " + e.getMessage());
+			return;
+		}
+		RawFrame raw = null;
+		try {
+			final int medium = ((KNXMediumSettings) options.get("medium")).getMedium();
+			raw = RawFrameFactory.create(medium, cemi.getPayload(), 0);
+		}
+		catch (final KNXFormatException e) {
+			// keep the cEMI frame, but without decoded raw frame
+		}
+		onIndication(new MonitorFrameEvent(line.monitor(), cemi, raw));
+	}
+
+	/**
+	 * Called by this tool after a monitor link was reconnected, to show the time the line was not
+	 * monitored.
+	 * <p>
+	 * Like {@link #onIndication(FrameEvent)}, this method is invoked by the consumer thread, in
+	 * receive order of the frames.
+	 *
+	 * @param line line identifier
+	 * @param duration gap duration in nanoseconds
+	 */
+	protected void onGap(final int line, final long duration)
+	{
+		out.log(LogLevel.ALWAYS, lines[line] + ": gap of " + millis(duration)
+				+ " ms without monitoring", null);
+	}
+
+	/**
+	 * Reports the start or end of an anomaly detected on a line.
+	 * <p>
+	 * The anomaly is logged, and written to the structured output.
+	 *
+	 * @param line line identifier
+	 * @param source source address causing the anomaly, or -1 for an anomaly of the line
+	 * @param message anomaly description
+	 * @param timestamp time of detection, obtained by {@link System#nanoTime()}
+	 * @param start <code>true</code> if the anomaly started, <code>false</code> if it ended
+	 */
+	private void anomaly(final int line, final int source, final String message,
+		final long timestamp, final boolean start)
+	{
+		if (start) {
+			anomalies++;
+			out.warn(lines[line] + ": anomaly: " + message);
+		}
+		else
+			out.info(lines[line] + ": " + message);
+		if (structured != null) {
+			try {
+				structured.anomaly(line, timestamp + timeBase, source, message, start);
+			}
+			catch (final IOException e) {
+				out.error("structured output stopped", e);
+				closeOutput();
+			}
+		}
+		if (start && options.containsKey("anomalyexit"))
+			synchronized (this) {
+				notifyAll();
+			}
+	}
+
+	/**
+	 * Called by this tool if the last frame shown of a line was repeated while the monitor was
+	 * overloaded, to show the number of repetitions not shown.
+	 * <p>
+	 * Like {@link #onIndication(FrameEvent)}, this method is invoked by the consumer thread, in
+	 * receive order of the frames.
+	 *
+	 * @param line line identifier
+	 * @param repetitions number of repetitions
+	 */
+	protected void onRepeated(final int line, final int repetitions)
+	{
+		out.log(LogLevel.ALWAYS, lines[line] + ": last frame repeated " + repetitions + " times",
+				null);
+	}
+
+	/**
+	 * Called by the consumer thread after processing a frame, or after some time without frames.
+	 * <p>
+	 *
+	 * @param now current time obtained by {@link System#nanoTime()}
+	 * @param last <code>true</code> if this is the last call before the consumer quits
+	 */
+	private void tick(final long now, final boolean last)
+	{
+		for (int i = 0; detectors != null && i < detectors.length; i++)
+			detectors[i].tick(now);
+		for (int i = 0; stats != null && i < stats.length; i++) {
+			final String s = stats[i].summary(now, last);
+			if (s != null)
+				out.log(LogLevel.ALWAYS, (stats.length > 1 ? lines[i] + " " : "") + s, null);
+		}
+		if (topTalkers != null) {
+			final String s = topTalkers.summary(now, last);
+			if (s != null)
+				out.log(LogLevel.ALWAYS, s, null);
+		}
+		if (correlator != null) {
+			final String s = correlator.summary(now, last);
+			if (s != null)
+				out.log(LogLevel.ALWAYS, s, null);
+		}
+		if (profile != null) {
+			final String s = profile.summary(now, last);
+			if (s != null)
+				out.log(LogLevel.ALWAYS, s, null);
+		}
+		if (trigger != null) {
+			try {
+				trigger.tick(now);
+			}
+			catch (final IOException e) {
+				out.error("trigger capture stopped", e);
+				closeTrigger();
+			}
+		}
+		if (structured != null) {
+			try {
+				structured.flush(now);
+			}
+			catch (final IOException e) {
+				out.error("structured output stopped", e);
+				closeOutput();
+			}
+		}
+		if (telegramLog != null) {
+			try {
+				telegramLog.flush(now);
+			}
+			catch (final IOException e) {
+				out.error("telegram log stopped", e);
+				closeOutput();
+			}
+		}
+	}
+
+	// duration contained in the data of a gap entry
+	private static long gapDuration(final byte[] data)
+	{
+		long d = 0;
+		for (int i = 0; i < 8; i++)
+			d = d << 8 | data[i] & 0xff;
+		return d;
+	}
+
+	private static long millis(final long nanos)
+	{
+		return nanos / 1000000;
+	}
+
+	private void closeLog()
+	{
+		final LogWriter w;
+		synchronized (this) {
+			w = logWriter;
+			logWriter = null;
+		}
+		if (w != null) {
+			out.removeWriter(w);
+			w.close();
+		}
+	}
+
+	private void stopConsumer()
+	{
+		final Consumer c;
+		synchronized (this) {
+			c = consumer;
+			consumer = null;
+		}
+		if (c == null)
+			return;
+		merger.close();
+		try {
+			c.join();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		closeCapture();
+		closeTrigger();
+		closeOutput();
+		if (fanOut != null)
+			fanOut.quit();
+		if (filter != null)
+			out.info(rejected + " frames rejected by filter");
+		if (overload != null) {
+			final String s = overload.summary();
+			if (s != null)
+				out.warn(s);
+		}
+		if (detectors != null)
+			out.info(anomalies + " anomalies detected");
+		for (int i = 0; i < lines.length; i++) {
+			if (options.containsKey("reconnect"))
+				out.info(lines[i] + ": " + lines[i].reconnectStatus());
+			final FrameRing ring = lines[i].ring;
+			final String s = "receive buffer " + lines[i] + ": " + ring.status();
+			if (ring.dropped > 0 || ring.truncated > 0)
+				out.warn(s);
+			else
+				out.info(s);
+		}
+	}
+
+	private boolean isActive()
+	{
+		final Line[] l = lines;
+		for (int i = 0; i < l.length; i++)
+			if (l[i].isActive())
+				return true;
+		return false;
+	}
+
 	/**
 	 * Creates the KNX network monitor link to access the network specified in <code>options</code>.
 	 * <p>
 	 *
+	 * @param endpoint the remote host address or serial port identifier of the line
+	 * @param line line identifier, used to derive the local port of a line
 	 * @return the KNX network monitor link
 	 * @throws KNXException on problems on link creation
 	 * @throws InterruptedException on interrupted thread
 	 */
-	private KNXNetworkMonitor createMonitor() throws KNXException, InterruptedException
+	private KNXNetworkMonitor createMonitor(final Object endpoint, final int line)
+		throws KNXException, InterruptedException
 	{
 		final KNXMediumSettings medium = (KNXMediumSettings) options.get("medium");
 		if (options.containsKey("serial")) {
 			// create FT1.2 monitor link
-			final String p = (String) options.get("serial");
+			final String p = (String) endpoint;
 			try {
 				return new KNXNetworkMonitorFT12(Integer.parseInt(p), medium);
 			}
@@ -330,10 +1078,12 @@ public class NetworkMonitor implements Runnable
 				return new KNXNetworkMonitorFT12(p, medium);
 			}
 		}
-		// create local and remote socket address for monitor link
+		// create local and remote socket address for monitor link,
+		// every line uses its own local port if a port was specified
+		final Integer port = (Integer) options.get("localport");
 		final InetSocketAddress local = createLocalSocket((InetAddress) options.get("localhost"),
-				(Integer) options.get("localport"));
-		final InetSocketAddress host = new InetSocketAddress((InetAddress) options.get("host"),
+				port != null ? new Integer(port.intValue() + line) : null);
+		final InetSocketAddress host = new InetSocketAddress((InetAddress) endpoint,
 				((Integer) options.get("port")).intValue());
 		// create the monitor link, based on the KNXnet/IP protocol
 		// specify whether network address translation shall be used,
@@ -360,7 +1110,19 @@ public class NetworkMonitor implements Runnable
 		// add defaults
 		options.put("port", new Integer(KNXnetIPConnection.DEFAULT_PORT));
 		options.put("medium", TPSettings.TP1);
+		options.put("queue", new Integer(defaultQueueSize));
+		options.put("wait", new Integer(FrameMerger.BLOCK));
+		options.put("reorder", new Integer(defaultReorderWindow));
+		options.put("logsize", new Integer(defaultLogSize));
+		options.put("loginterval", new Integer(0));
+		options.put("logretain", new Integer(defaultLogRetain));
+		options.put("window", new Integer(defaultTopWindow));
+		options.put("maxbackoff", new Integer(defaultMaxBackoff));
+		options.put("pretrigger", defaultPreTrigger);
+		options.put("posttrigger", defaultPostTrigger);
+		options.put("sample", new Integer(defaultSampleRate));
 
+		final List endpoints = new ArrayList();
 		int i = 0;
 		for (; i < args.length; i++) {
 			final String arg = args[i];
@@ -386,16 +1148,114 @@ public class NetworkMonitor implements Runnable
 				options.put("serial", null);
 			else if (isOption(arg, "-medium", "-m"))
 				options.put("medium", getMedium(args[++i]));
-			else if (options.containsKey("serial"))
-				// add port number/identifier to serial option
-				options.put("serial", arg);
-			else if (!options.containsKey("host"))
-				parseHost(arg, false, options);
-			else
+			else if (isOption(arg, "-queue", null))
+				options.put("queue", Integer.decode(args[++i]));
+			else if (isOption(arg, "-wait", null))
+				options.put("wait", new Integer(getWaitStrategy(args[++i])));
+			else if (isOption(arg, "-reorder", null))
+				options.put("reorder", Integer.decode(args[++i]));
+			else if (isOption(arg, "-capture", null))
+				options.put("capture", args[++i]);
+			else if (isOption(arg, "-quiet", "-q"))
+				options.put("quiet", null);
+			else if (isOption(arg, "-filter", null))
+				options.put("filter", FrameFilter.compile(args[++i]));
+			else if (isOption(arg, "-log", null))
+				options.put("log", args[++i]);
+			else if (isOption(arg, "-logsize", null))
+				options.put("logsize", Integer.decode(args[++i]));
+			else if (isOption(arg, "-loginterval", null))
+				options.put("loginterval", Integer.decode(args[++i]));
+			else if (isOption(arg, "-logretain", null))
+				options.put("logretain", Integer.decode(args[++i]));
+			else if (isOption(arg, "-stats", null))
+				options.put("stats", Integer.decode(args[++i]));
+			else if (isOption(arg, "-top", null))
+				options.put("top", Integer.decode(args[++i]));
+			else if (isOption(arg, "-window", null))
+				options.put("window", Integer.decode(args[++i]));
+			else if (isOption(arg, "-trigger", null))
+				options.put("trigger", FrameFilter.compile(args[++i]));
+			else if (isOption(arg, "-pretrigger", null))
+				options.put("pretrigger", checkWindow(args[++i]));
+			else if (isOption(arg, "-posttrigger", null))
+				options.put("posttrigger", checkWindow(args[++i]));
+			else if (isOption(arg, "-serve", null))
+				options.put("serve", Integer.decode(args[++i]));
+			else if (isOption(arg, "-servedrop", null))
+				getDropPolicy(args[++i], options);
+			else if (isOption(arg, "-latency", null))
+				options.put("latency", Integer.decode(args[++i]));
+			else if (isOption(arg, "-profile", null))
+				options.put("profile", Integer.decode(args[++i]));
+			else if (isOption(arg, "-overload", null))
+				options.put("overload", new Integer(getOverloadPolicy(args[++i])));
+			else if (isOption(arg, "-sample", null))
+				options.put("sample", Integer.decode(args[++i]));
+			else if (isOption(arg, "-anomaly", null))
+				options.put("anomaly", getAnomalyThresholds(args[++i]));
+			else if (isOption(arg, "-anomalyexit", null))
+				options.put("anomalyexit", null);
+			else if (isOption(arg, "-format", null))
+				getFormat(args[++i], options);
+			else if (isOption(arg, "-output", "-o"))
+				options.put("output", args[++i]);
+			else if (isOption(arg, "-dpt", null))
+				options.put("dpt", args[++i]);
+			else if (isOption(arg, "-reconnect", null))
+				options.put("reconnect", null);
+			else if (isOption(arg, "-maxbackoff", null))
+				options.put("maxbackoff", Integer.decode(args[++i]));
+			else if (arg.startsWith("-"))
 				throw new KNXIllegalArgumentException("unknown option " + arg);
+			else
+				// a host or port identifier of a line
+				endpoints.add(arg);
 		}
-		if (!options.containsKey("host") && !options.containsKey("serial"))
+		if (endpoints.isEmpty())
 			throw new KNXIllegalArgumentException("no host or serial port specified");
+		// line identifiers have to fit into one byte of a capture record
+		if (endpoints.size() > 256)
+			throw new KNXIllegalArgumentException("too many lines, at most 256 are supported");
+		if (options.containsKey("trigger") && !options.containsKey("capture"))
+			throw new KNXIllegalArgumentException("trigger requires a capture file");
+		if (options.containsKey("output") && !options.containsKey("format"))
+			throw new KNXIllegalArgumentException("output file requires format json, csv, or ets");
+		if (((Integer) options.get("sample")).intValue() < 1)
+			throw new KNXIllegalArgumentException("sample rate has to be at least 1");
+		if (((Integer) options.get("window")).intValue() < 1)
+			throw new KNXIllegalArgumentException("top window has to be at least 1 second");
+		if (options.containsKey("stats") && ((Integer) options.get("stats")).intValue() < 1)
+			throw new KNXIllegalArgumentException("statistics interval has to be "
+					+ "at least 1 second");
+		if (options.containsKey("latency") && ((Integer) options.get("latency")).intValue() < 1)
+			throw new KNXIllegalArgumentException("latency report interval has to be "
+					+ "at least 1 second");
+		if (options.containsKey("profile") && ((Integer) options.get("profile")).intValue() < 1)
+			throw new KNXIllegalArgumentException("profile interval has to be "
+					+ "at least 1 second");
+		if (options.containsKey("anomalyexit") && !options.containsKey("anomaly"))
+			options.put("anomaly", defaultAnomalyThresholds.clone());
+		if (!options.containsKey("serial"))
+			for (int k = 0; k < endpoints.size(); k++)
+				endpoints.set(k, getHost((String) endpoints.get(k)));
+		options.put("endpoints", endpoints);
+		final KNXMediumSettings medium = (KNXMediumSettings) options.get("medium");
+		if (medium.getMedium() != KNXMediumSettings.MEDIUM_TP1) {
+			if (options.containsKey("filter") || options.containsKey("trigger"))
+				throw new KNXIllegalArgumentException("frame filter requires KNX medium tp1");
+			if (options.containsKey("stats") || options.containsKey("top")
+					|| options.containsKey("latency"))
+				throw new KNXIllegalArgumentException("bus statistics require KNX medium tp1");
+			if (options.containsKey("format")
+					&& ((Integer) options.get("format")).intValue() != TelegramLog.ETS
+					|| options.containsKey("serve"))
+				throw new KNXIllegalArgumentException("output format requires KNX medium tp1");
+			if (options.containsKey("overload"))
+				throw new KNXIllegalArgumentException("overload policy requires KNX medium tp1");
+			if (options.containsKey("anomaly"))
+				throw new KNXIllegalArgumentException("anomaly detection requires KNX medium tp1");
+		}
 	}
 
 	private static boolean isOption(final String arg, final String longOpt, final String shortOpt)
@@ -406,7 +1266,8 @@ public class NetworkMonitor implements Runnable
 	private static void showUsage()
 	{
 		final StringBuffer sb = new StringBuffer();
-		sb.append("usage: ").append(tool).append(" [options] <host|port>").append(sep);
+		sb.append("usage: ").append(tool).append(" [options] <host|port> [<host|port>...]")
+				.append(sep);
 		sb.append("options:").append(sep);
 		sb.append("  -help -h                show this help message").append(sep);
 		sb.append("  -version                show tool/library version and exit").append(sep);
@@ -420,6 +1281,67 @@ public class NetworkMonitor implements Runnable
 		sb.append("  -serial -s              use FT1.2 serial communication").append(sep);
 		sb.append("  -medium -m <id>         KNX medium [tp0|tp1|p110|p132|rf] " + "(default tp1)")
 				.append(sep);
+		sb.append("  -queue <frames>         receive buffer size in frames (default ")
+				.append(defaultQueueSize).append(")").append(sep);
+		sb.append("  -wait <strategy>        consumer wait strategy [block|sleep|yield|spin] "
+				+ "(default block)").append(sep);
+		sb.append("  -reorder <ms>           max. delay to merge frames of several lines in order "
+				+ "(default ").append(defaultReorderWindow).append(")").append(sep);
+		sb.append("  -capture <file>         record all frames to a binary capture file").append(sep);
+		sb.append("  -quiet -q               do not decode and show received frames").append(sep);
+		sb.append("  -filter <expression>    only process frames matching the expression (tp1)")
+				.append(sep);
+		sb.append("      fields: src, dst, apci, prio, data; e.g., \"dst in 1/2/0-1/2/255 and "
+				+ "apci=GroupValueWrite\"").append(sep);
+		sb.append("  -format <format>        output format [text|json|csv|ets] (default text, json "
+				+ "and csv require tp1)").append(sep);
+		sb.append("  -output -o <file>       write json, csv, or ets output to file instead of "
+				+ "console").append(sep);
+		sb.append("  -dpt <file>             decode group values using the group address to DPT "
+				+ "mapping in file").append(sep);
+		sb.append("  -log <file>             write output to a rolling log file").append(sep);
+		sb.append("  -logsize <MB>           rotate log file on exceeding size (default ")
+				.append(defaultLogSize).append(")").append(sep);
+		sb.append("  -loginterval <minutes>  rotate log file after time interval").append(sep);
+		sb.append("  -logretain <number>     compressed log files to keep (default ")
+				.append(defaultLogRetain).append(")").append(sep);
+		sb.append("  -stats <seconds>        show bus statistics instead of frames (tp1)")
+				.append(sep);
+		sb.append("  -top <number>           show top senders and destinations instead of frames "
+				+ "(tp1)").append(sep);
+		sb.append("  -window <seconds>       sliding window for top senders and destinations "
+				+ "(default ").append(defaultTopWindow).append(")").append(sep);
+		sb.append("  -trigger <expression>   keep recent frames in memory, capture them when a "
+				+ "frame matches (tp1)").append(sep);
+		sb.append("  -pretrigger <n|ns>      frames or seconds captured before the trigger "
+				+ "(default ").append(defaultPreTrigger).append(")").append(sep);
+		sb.append("  -posttrigger <n|ns>     frames or seconds captured after the trigger "
+				+ "(default ").append(defaultPostTrigger).append(")").append(sep);
+		sb.append("  -serve <port>           serve frames as JSON Lines to local TCP subscribers "
+				+ "(tp1)").append(sep);
+		sb.append("  -servedrop <policy>     on a slow subscriber [frames|disconnect] (default "
+				+ "frames)").append(sep);
+		sb.append("  -latency <seconds>      show response times of read and management requests "
+				+ "instead of frames (tp1)").append(sep);
+		sb.append("  -profile <seconds>      show processing times of monitor stages and buffer "
+				+ "depths").append(sep);
+		sb.append("  -overload <policy>      reduce output if it falls behind [coalesce|sample|"
+				+ "drop] (tp1)").append(sep);
+		sb.append("  -sample <k>             show 1 in k frames per source when sampling (default ")
+				.append(defaultSampleRate).append(")").append(sep);
+		sb.append("  -anomaly <thresholds>   report traffic anomalies (tp1), thresholds are "
+				+ "key=value[,key=value...]").append(sep);
+		sb.append("      keys (defaults):");
+		for (int i = 0; i < anomalyKeys.length; i++)
+			sb.append(' ').append(anomalyKeys[i]).append(" (").append(defaultAnomalyThresholds[i])
+					.append(')');
+		sb.append(sep);
+		sb.append("  -anomalyexit            quit with exit status ").append(anomalyExitStatus)
+				.append(" on the first anomaly").append(sep);
+		sb.append("  -reconnect              reconnect closed monitor links, mark gaps in output")
+				.append(sep);
+		sb.append("  -maxbackoff <seconds>   max. wait time between reconnect attempts (default ")
+				.append(defaultMaxBackoff).append(")").append(sep);
 		out.log(LogLevel.ALWAYS, sb.toString(), null);
 	}
 
@@ -453,19 +1375,109 @@ public class NetworkMonitor implements Runnable
 			throw new KNXIllegalArgumentException("unknown medium");
 	}
 
-	private static void parseHost(final String host, final boolean local, final Map options)
+	private static void getDropPolicy(final String id, final Map options)
 	{
-		try {
-			options.put(local ? "localhost" : "host", InetAddress.getByName(host));
-		}
-		catch (final UnknownHostException e) {
-			throw new KNXIllegalArgumentException("failed to read host " + host, e);
+		if (id.equals("frames"))
+			options.remove("servedisconnect");
+		else if (id.equals("disconnect"))
+			options.put("servedisconnect", null);
+		else
+			throw new KNXIllegalArgumentException("unknown drop policy " + id);
+	}
+
+	private static int getOverloadPolicy(final String id)
+	{
+		if (id.equals("coalesce"))
+			return OverloadPolicy.COALESCE;
+		if (id.equals("sample"))
+			return OverloadPolicy.SAMPLE;
+		if (id.equals("drop"))
+			return OverloadPolicy.DROP;
+		throw new KNXIllegalArgumentException("unknown overload policy " + id);
+	}
+
+	/**
+	 * Parses the window length and anomaly thresholds of an anomaly detector.
+	 * <p>
+	 * The supplied specification is a comma separated list of <i>key=value</i> pairs, with keys of
+	 * {@link #anomalyKeys}; thresholds not specified keep their default.
+	 *
+	 * @param spec threshold specification
+	 * @return window length and thresholds, indexed by {@link AnomalyDetector#WINDOW},
+	 *         {@link AnomalyDetector#STORM}, ...
+	 */
+	private static int[] getAnomalyThresholds(final String spec)
+	{
+		final int[] limits = (int[]) defaultAnomalyThresholds.clone();
+		final StringTokenizer st = new StringTokenizer(spec, ", ");
+		while (st.hasMoreTokens()) {
+			final String token = st.nextToken();
+			final int eq = token.indexOf('=');
+			int key = -1;
+			for (int i = 0; eq > 0 && i < anomalyKeys.length; i++)
+				if (anomalyKeys[i].equals(token.substring(0, eq)))
+					key = i;
+			if (key == -1)
+				throw new KNXIllegalArgumentException("unknown anomaly threshold " + token);
+			limits[key] = Integer.parseInt(token.substring(eq + 1));
+			if (limits[key] < 1)
+				throw new KNXIllegalArgumentException("anomaly threshold " + token
+						+ " has to be at least 1");
 		}
+		return limits;
 	}
 
-	private static InetSocketAddress createLocalSocket(final InetAddress host, final Integer port)
+	private static String checkWindow(final String window)
 	{
-		final int p = port != null ? port.intValue() : 0;
+		TriggerCapture.window(window);
+		return window;
+	}
+
+	private static void getFormat(final String id, final Map options)
+	{
+		if (id.equals("text"))
+			options.remove("format");
+		else if (id.equals("json"))
+			options.put("format", new Integer(StructuredOutput.JSON));
+		else if (id.equals("csv"))
+			options.put("format", new Integer(StructuredOutput.CSV));
+		else if (id.equals("ets"))
+			options.put("format", new Integer(TelegramLog.ETS));
+		else
+			throw new KNXIllegalArgumentException("unknown output format " + id);
+	}
+
+	private static int getWaitStrategy(final String id)
+	{
+		if (id.equals("block"))
+			return FrameMerger.BLOCK;
+		if (id.equals("sleep"))
+			return FrameMerger.SLEEP;
+		if (id.equals("yield"))
+			return FrameMerger.YIELD;
+		if (id.equals("spin"))
+			return FrameMerger.SPIN;
+		throw new KNXIllegalArgumentException("unknown wait strategy " + id);
+	}
+
+	private static void parseHost(final String host, final boolean local, final Map options)
+	{
+		options.put(local ? "localhost" : "host", getHost(host));
+	}
+
+	private static InetAddress getHost(final String host)
+	{
+		try {
+			return InetAddress.getByName(host);
+		}
+		catch (final UnknownHostException e) {
+			throw new KNXIllegalArgumentException("failed to read host " + host, e);
+		}
+	}
+
+	private static InetSocketAddress createLocalSocket(final InetAddress host, final Integer port)
+	{
+		final int p = port != null ? port.intValue() : 0;
 		try {
 			return host != null ? new InetSocketAddress(host, p) : p != 0 ? new InetSocketAddress(
 					InetAddress.getLocalHost(), p) : null;
@@ -475,6 +1487,3996 @@ public class NetworkMonitor implements Runnable
 		}
 	}
 
+	/**
+	 * An output stream writing to a sequence of log file segments.
+	 * <p>
+	 * The stream writes to the active segment until it exceeds its size limit or its time interval
+	 * has passed; on the next flush, the active segment is closed, renamed using the time of
+	 * rotation, and a new active segment is opened. Rotation is only checked on flush, which allows
+	 * a writer to keep a log entry within one segment.<br>
+	 * Closed segments are compressed by a background thread, which also deletes the oldest
+	 * compressed segments exceeding the retention limit. Hence, the writing thread never waits on
+	 * compression or file deletion.
+	 */
+	private static final class RollingOutputStream extends OutputStream
+	{
+		private final File file;
+		private final long maxSize;
+		private final long interval;
+		private final Compressor compressor;
+		private final SimpleDateFormat suffix = new SimpleDateFormat("yyyyMMdd-HHmmss");
+
+		private OutputStream os;
+		private long size;
+		private long rotateAt;
+
+		/**
+		 * Creates a new rolling output stream.
+		 * <p>
+		 *
+		 * @param name file name of the active segment, also used as prefix of closed segments
+		 * @param maxSize size limit of a segment in bytes, 0 for no limit
+		 * @param interval rotation interval in milliseconds, 0 for no interval
+		 * @param retain number of compressed segments to keep
+		 * @throws IOException on error opening the active segment
+		 */
+		RollingOutputStream(final String name, final long maxSize, final long interval,
+			final int retain) throws IOException
+		{
+			file = new File(name).getAbsoluteFile();
+			this.maxSize = maxSize;
+			this.interval = interval;
+			compressor = new Compressor(file, retain);
+			compressor.start();
+			open();
+		}
+
+		public void write(final int b) throws IOException
+		{
+			os.write(b);
+			size++;
+		}
+
+		public void write(final byte[] b, final int off, final int len) throws IOException
+		{
+			os.write(b, off, len);
+			size += len;
+		}
+
+		public void flush() throws IOException
+		{
+			os.flush();
+			if (maxSize > 0 && size >= maxSize || interval > 0
+					&& System.currentTimeMillis() >= rotateAt)
+				rotate();
+		}
+
+		public void close() throws IOException
+		{
+			os.close();
+			compressor.quit();
+		}
+
+		private void rotate() throws IOException
+		{
+			os.close();
+			final String base = file.getPath() + "." + suffix.format(new Date());
+			File segment = new File(base);
+			for (int i = 1; segment.exists() || new File(segment.getPath() + ".gz").exists(); i++)
+				segment = new File(base + "-" + i);
+			if (file.renameTo(segment))
+				compressor.add(segment);
+			else
+				out.error("rotating log file failed, cannot rename " + file + " to " + segment);
+			open();
+		}
+
+		private void open() throws IOException
+		{
+			os = new BufferedOutputStream(new FileOutputStream(file, true));
+			size = file.length();
+			rotateAt = System.currentTimeMillis() + interval;
+		}
+	}
+
+	// compresses closed log segments and applies the retention limit
+	private static final class Compressor extends Thread
+	{
+		// name suffix of a rotated segment, see RollingOutputStream.rotate
+		private static final String segmentSuffix = "\\d{8}-\\d{6}(-\\d+)?(\\.gz)?";
+
+		private final List pending = new ArrayList();
+		// compressed segments, oldest first
+		private final List compressed = new ArrayList();
+		private final int retain;
+		private boolean quit;
+
+		Compressor(final File active, final int retain)
+		{
+			super(tool + " log compressor");
+			setDaemon(true);
+			this.retain = retain;
+			// pick up segments of previous runs, their names sort by time of rotation; other
+			// files with the same name prefix, e.g., a capture, are left alone
+			final String prefix = active.getName() + ".";
+			final String[] names = active.getParentFile().list();
+			if (names == null)
+				return;
+			Arrays.sort(names);
+			for (int i = 0; i < names.length; i++) {
+				if (!names[i].startsWith(prefix)
+						|| !names[i].substring(prefix.length()).matches(segmentSuffix))
+					continue;
+				final File f = new File(active.getParentFile(), names[i]);
+				if (names[i].endsWith(".gz"))
+					compressed.add(f);
+				else
+					pending.add(f);
+			}
+		}
+
+		synchronized void add(final File segment)
+		{
+			pending.add(segment);
+			notify();
+		}
+
+		// waits until all pending segments are compressed
+		void quit()
+		{
+			synchronized (this) {
+				quit = true;
+				notify();
+			}
+			try {
+				join();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void run()
+		{
+			while (true) {
+				final File segment;
+				synchronized (this) {
+					while (pending.isEmpty() && !quit)
+						try {
+							wait();
+						}
+						catch (final InterruptedException e) {
+							return;
+						}
+					if (pending.isEmpty())
+						return;
+					segment = (File) pending.remove(0);
+				}
+				final File gz = new File(segment.getPath() + ".gz");
+				try {
+					compress(segment, gz);
+					segment.delete();
+					compressed.add(gz);
+				}
+				catch (final IOException e) {
+					out.error("compressing log segment " + segment, e);
+					gz.delete();
+				}
+				while (compressed.size() > retain)
+					((File) compressed.remove(0)).delete();
+			}
+		}
+
+		private static void compress(final File src, final File dst) throws IOException
+		{
+			final InputStream is = new FileInputStream(src);
+			try {
+				final OutputStream os = new GZIPOutputStream(new FileOutputStream(dst), 64 * 1024);
+				try {
+					final byte[] buf = new byte[64 * 1024];
+					for (int n = is.read(buf); n != -1; n = is.read(buf))
+						os.write(buf, 0, n);
+				}
+				finally {
+					os.close();
+				}
+			}
+			finally {
+				is.close();
+			}
+		}
+	}
+
+	/**
+	 * Bounded single-producer/single-consumer ring buffer with preallocated frame slots.
+	 * <p>
+	 * The producer copies a frame into the next free slot and returns, it never waits. If the ring
+	 * is full, the frame is dropped and counted. The consumer takes frames in the order they were
+	 * offered, see {@link FrameMerger} on how the consumer waits for frames.
+	 */
+	private static final class FrameRing
+	{
+		// max. length of a stored cEMI frame, longer frames get truncated
+		private static final int maxFrameSize = 320;
+
+		final byte[][] frames;
+		final int[] types;
+		final int[] lengths;
+		final long[] timestamps;
+		private final int mask;
+		private final FrameMerger merger;
+
+		// sequence number of the next slot to fill, only written by the producer
+		private volatile long head;
+		// sequence number of the next slot to take, only written by the consumer
+		private volatile long tail;
+
+		// overflow counters, only written by the producer
+		private volatile long dropped;
+		private volatile long truncated;
+		// max. number of frames queued, only written by the consumer
+		private volatile int highWater;
+
+		FrameRing(final int capacity, final FrameMerger merger)
+		{
+			int size = 1;
+			while (size < capacity)
+				size <<= 1;
+			frames = new byte[size][maxFrameSize];
+			types = new int[size];
+			lengths = new int[size];
+			timestamps = new long[size];
+			mask = size - 1;
+			this.merger = merger;
+		}
+
+		boolean offer(final byte[] frame, final long timestamp)
+		{
+			return offer(CaptureFormat.FRAME, frame, timestamp);
+		}
+
+		/**
+		 * Offers an entry of the supplied type to the ring.
+		 * <p>
+		 * Besides frames, the ring holds gap markers, see {@link CaptureWriter#GAP}.
+		 *
+		 * @param type entry type, a capture record type
+		 * @param data entry data
+		 * @param timestamp receive time obtained by {@link System#nanoTime()}
+		 * @return <code>true</code> if the entry was added, <code>false</code> if the ring is full
+		 */
+		boolean offer(final int type, final byte[] data, final long timestamp)
+		{
+			final long h = head;
+			if (h - tail > mask) {
+				dropped++;
+				return false;
+			}
+			final int slot = (int) h & mask;
+			int length = data.length;
+			if (length > maxFrameSize) {
+				truncated++;
+				length = maxFrameSize;
+			}
+			System.arraycopy(data, 0, frames[slot], 0, length);
+			types[slot] = type;
+			lengths[slot] = length;
+			timestamps[slot] = timestamp;
+			head = h + 1;
+			merger.wakeUp();
+			return true;
+		}
+
+		/**
+		 * Returns the slot of the oldest frame in the ring, without waiting.
+		 * <p>
+		 * The slot is owned by the consumer until {@link #release()} is called.
+		 *
+		 * @return slot index, or -1 if the ring is empty
+		 */
+		int peek()
+		{
+			final long t = tail;
+			final long h = head;
+			if (h == t)
+				return -1;
+			final int depth = (int) (h - t);
+			if (depth > highWater)
+				highWater = depth;
+			return (int) t & mask;
+		}
+
+		void release()
+		{
+			tail = tail + 1;
+		}
+
+		// number of frames in the ring, only meaningful for the consumer
+		int depth()
+		{
+			return (int) (head - tail);
+		}
+
+		String status()
+		{
+			return dropped + " frames dropped, " + truncated + " frames truncated, max. "
+					+ highWater + " of " + lengths.length + " frames queued";
+		}
+	}
+
+	/**
+	 * Takes frames from the receive buffers of all monitored lines in the order of their receive
+	 * time.
+	 * <p>
+	 * Every buffer is in receive order, so the merge is a k-way merge over the oldest frames of all
+	 * buffers. The oldest frame is taken right away if every buffer holds a frame; otherwise it is
+	 * held back until it is older than the reorder window, to give frames of other lines received
+	 * at about the same time the chance to be taken in order.<br>
+	 * The consumer waits for frames using one of the available wait strategies:
+	 * <ul>
+	 * <li>BLOCK: wait on the merger monitor, a producer notifies only if the consumer waits</li>
+	 * <li>SLEEP: poll every millisecond</li>
+	 * <li>YIELD: poll and yield the processor in between</li>
+	 * <li>SPIN: busy poll, for lowest latency at the cost of one processor core</li>
+	 * </ul>
+	 */
+	private static final class FrameMerger
+	{
+		static final int BLOCK = 0;
+		static final int SLEEP = 1;
+		static final int YIELD = 2;
+		static final int SPIN = 3;
+
+		// returned by take if no frame is due within the timeout
+		static final int TIMEOUT = -2;
+		// returned by take if the merger is closed and all buffers are empty
+		static final int CLOSED = -1;
+
+		final FrameRing[] rings;
+		private final int strategy;
+		private final long reorderWindow;
+
+		private volatile boolean waiting;
+		private volatile boolean closed;
+
+		/**
+		 * @param lines number of lines, i.e., receive buffers
+		 * @param capacity capacity of a receive buffer in frames
+		 * @param waitStrategy wait strategy of the consumer
+		 * @param reorderWindow max. time a frame is held back in nanoseconds
+		 */
+		FrameMerger(final int lines, final int capacity, final int waitStrategy,
+			final long reorderWindow)
+		{
+			rings = new FrameRing[lines];
+			for (int i = 0; i < lines; i++)
+				rings[i] = new FrameRing(capacity, this);
+			strategy = waitStrategy;
+			this.reorderWindow = reorderWindow;
+		}
+
+		/**
+		 * Returns the receive buffer holding the next frame in receive order, waiting for a frame
+		 * if necessary.
+		 * <p>
+		 * The frame is the one returned by {@link FrameRing#peek()} of that buffer.
+		 *
+		 * @param timeout max. time to wait in nanoseconds
+		 * @return buffer index, {@link #TIMEOUT} if no frame is due within the timeout, or
+		 *         {@link #CLOSED} if the merger is closed and all frames were taken
+		 * @throws InterruptedException on interrupted thread
+		 */
+		int take(final long timeout) throws InterruptedException
+		{
+			final long deadline = System.nanoTime() + timeout;
+			while (true) {
+				// closed has to be read before scanning the buffers
+				final boolean drain = closed;
+				final long published = published();
+				int next = -1;
+				long oldest = 0;
+				boolean complete = true;
+				for (int i = 0; i < rings.length; i++) {
+					final int slot = rings[i].peek();
+					if (slot == -1)
+						complete = false;
+					else if (next == -1 || rings[i].timestamps[slot] - oldest < 0) {
+						next = i;
+						oldest = rings[i].timestamps[slot];
+					}
+				}
+				final long now = System.nanoTime();
+				long wait = deadline - now;
+				if (next != -1) {
+					final long age = now - oldest;
+					if (complete || drain || age >= reorderWindow)
+						return next;
+					wait = Math.min(wait, reorderWindow - age);
+				}
+				else if (drain)
+					return CLOSED;
+				if (now - deadline >= 0)
+					return TIMEOUT;
+				await(published, wait);
+			}
+		}
+
+		void wakeUp()
+		{
+			if (waiting)
+				synchronized (this) {
+					notify();
+				}
+		}
+
+		void close()
+		{
+			closed = true;
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+
+		// sum of all frames ever offered, to detect new frames
+		private long published()
+		{
+			long sum = 0;
+			for (int i = 0; i < rings.length; i++)
+				sum += rings[i].head;
+			return sum;
+		}
+
+		private void await(final long published, final long nanos) throws InterruptedException
+		{
+			if (strategy == SPIN)
+				return;
+			if (strategy == YIELD)
+				Thread.yield();
+			else if (strategy == SLEEP)
+				Thread.sleep(1);
+			else {
+				synchronized (this) {
+					waiting = true;
+					try {
+						// timed wait also guards against a notify we might have missed
+						if (published() == published && !closed)
+							wait(Math.max(1, Math.min(100, nanos / 1000000)));
+					}
+					finally {
+						waiting = false;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A monitored KNX line, with its monitor link and receive buffer.
+	 * <p>
+	 * The line is the listener of its monitor link. Hence, every line receives frames on the
+	 * receiver thread of its own link.<br>
+	 * In supervised mode, a supervisor thread of the line reopens a closed monitor link, waiting
+	 * with exponential backoff and jitter between attempts. Once reconnected, the line puts a gap
+	 * marker with the duration the line was not monitored into its receive buffer.
+	 */
+	private final class Line implements LinkListener
+	{
+		final int id;
+		final FrameRing ring;
+		private final Object endpoint;
+		private volatile KNXNetworkMonitor m;
+
+		private final Random random = new Random();
+		private Thread supervisor;
+		private volatile boolean closed;
+
+		// reconnect statistics, only written by the supervisor
+		private volatile int reconnects;
+		private volatile long gapTotal;
+		private volatile long gapMin = Long.MAX_VALUE;
+		private volatile long gapMax;
+		private volatile long connectMax;
+
+		Line(final int id, final Object endpoint, final FrameRing ring)
+		{
+			this.id = id;
+			this.endpoint = endpoint;
+			this.ring = ring;
+		}
+
+		void open() throws KNXException, InterruptedException
+		{
+			attach(createMonitor(endpoint, id));
+		}
+
+		void supervise()
+		{
+			supervisor = new Thread(tool + " supervisor " + this)
+			{
+				public void run()
+				{
+					try {
+						while (awaitClose()) {
+							try {
+								reconnect();
+							}
+							catch (final RuntimeException e) {
+								// keep supervising, the next round starts over with a backoff
+								out.error(Line.this + " reconnect failed", e);
+							}
+						}
+					}
+					catch (final InterruptedException e) {}
+				}
+			};
+			supervisor.setDaemon(true);
+			supervisor.start();
+		}
+
+		/**
+		 * Returns whether the line is open, or reconnecting its monitor link.
+		 * <p>
+		 *
+		 * @return <code>true</code> if the line is active, <code>false</code> otherwise
+		 */
+		boolean isActive()
+		{
+			if (isOpen())
+				return true;
+			final Thread t = supervisor;
+			return !closed && t != null && t.isAlive();
+		}
+
+		boolean isOpen()
+		{
+			final KNXNetworkMonitor mon = m;
+			return mon != null && mon.isOpen();
+		}
+
+		void close()
+		{
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			final KNXNetworkMonitor mon = m;
+			if (mon != null && mon.isOpen())
+				mon.close();
+		}
+
+		KNXNetworkMonitor monitor()
+		{
+			return m;
+		}
+
+		String reconnectStatus()
+		{
+			final int n = reconnects;
+			if (n == 0)
+				return "no reconnects";
+			return n + " reconnects, gap min/avg/max " + millis(gapMin) + "/"
+					+ millis(gapTotal / n) + "/" + millis(gapMax) + " ms, max. connect time "
+					+ millis(connectMax) + " ms";
+		}
+
+		public void indication(final FrameEvent e)
+		{
+			// we're on the receiver thread of the monitor link, only copy the frame and return
+			ring.offer(e.getFrame().toByteArray(), System.nanoTime());
+		}
+
+		public void linkClosed(final CloseEvent e)
+		{
+			out.info("network monitor " + this + " closed (" + e.getReason() + ")");
+			// wake up the supervisor right away
+			synchronized (this) {
+				notifyAll();
+			}
+			synchronized (NetworkMonitor.this) {
+				NetworkMonitor.this.notify();
+			}
+		}
+
+		public String toString()
+		{
+			return "line " + id + " (" + endpoint + ")";
+		}
+
+		private void attach(final KNXNetworkMonitor mon)
+		{
+			// raw frames are decoded by our consumer thread, so the link receiver does not
+			// spend time on decoding
+			mon.setDecodeRawFrames(false);
+			m = mon;
+			// listen to monitor link events
+			mon.addMonitorListener(this);
+			// the line might have been closed while we were connecting
+			if (closed)
+				mon.close();
+		}
+
+		// returns false if the line was closed
+		private synchronized boolean awaitClose() throws InterruptedException
+		{
+			// timed wait, the link might have closed before we were added as listener
+			while (!closed && isOpen())
+				wait(500);
+			return !closed;
+		}
+
+		private void reconnect() throws InterruptedException
+		{
+			final long start = System.nanoTime();
+			final long maxBackoff = ((Integer) options.get("maxbackoff")).longValue() * 1000;
+			long backoff = Math.min(minBackoff, maxBackoff);
+			out.warn(this + " closed, reconnecting");
+			for (int attempt = 1; !closed; attempt++) {
+				// equal jitter, keeps lines sharing a gateway from reconnecting in lockstep
+				final long delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+				synchronized (this) {
+					if (!closed && delay > 0)
+						wait(delay);
+				}
+				if (closed)
+					return;
+				final long connect = System.nanoTime();
+				final KNXNetworkMonitor mon;
+				try {
+					mon = createMonitor(endpoint, id);
+				}
+				catch (final KNXException e) {
+					out.warn(this + " reconnect attempt " + attempt + " failed: " + e.getMessage());
+					backoff = Math.min(backoff * 2, maxBackoff);
+					continue;
+				}
+				catch (final RuntimeException e) {
+					out.error(this + " reconnect attempt " + attempt + " failed", e);
+					backoff = Math.min(backoff * 2, maxBackoff);
+					continue;
+				}
+				final long now = System.nanoTime();
+				final long gap = now - start;
+				gapTotal += gap;
+				gapMin = Math.min(gapMin, gap);
+				gapMax = Math.max(gapMax, gap);
+				connectMax = Math.max(connectMax, now - connect);
+				reconnects++;
+				// mark the gap before the first frame of the new link
+				final byte[] duration = new byte[8];
+				for (int i = 0; i < 8; i++)
+					duration[i] = (byte) (gap >>> (56 - 8 * i));
+				if (!ring.offer(CaptureFormat.GAP, duration, now))
+					out.warn(this + " receive buffer full, gap marker dropped");
+				attach(mon);
+				out.info(this + " reconnected after " + millis(gap) + " ms, " + attempt
+						+ " attempts, connect time " + millis(now - connect) + " ms");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Decodes group values into engineering units, using the datapoint type assigned to the group
+	 * address in a mapping file, see {@link DptMapping}.
+	 * <p>
+	 * The translator of a DPT is reused for every frame.
+	 */
+	private static final class GroupValues
+	{
+		private static final int GROUP_RESPONSE = 0x40;
+		private static final int GROUP_WRITE = 0x80;
+
+		private final DptMapping mapping;
+		// reused data buffers by data length, translators expect data of exact length
+		private final byte[][] buffers = new byte[256][];
+
+		GroupValues(final String file) throws IOException
+		{
+			mapping = new DptMapping(file);
+		}
+
+		/**
+		 * Appends the group value contained in a group write or response TPDU, if a datapoint type
+		 * is assigned to the group address.
+		 * <p>
+		 *
+		 * @param group raw group address
+		 * @param tpdu the TPDU
+		 * @param sb buffer to append the translated value to
+		 */
+		void decode(final int group, final byte[] tpdu, final StringBuffer sb)
+		{
+			final String value = value(group, tpdu, 0, tpdu.length);
+			if (value != null)
+				sb.append(" = ").append(value);
+		}
+
+		/**
+		 * Returns the group value contained in a group write or response TPDU, translated using
+		 * the datapoint type assigned to the group address.
+		 * <p>
+		 *
+		 * @param group raw group address
+		 * @param data buffer containing the TPDU
+		 * @param tpdu offset of the TPDU in <code>data</code>
+		 * @param length TPDU length
+		 * @return the translated value, or <code>null</code> if no datapoint type is assigned, the
+		 *         TPDU contains no group value, or the data does not fit the datapoint type
+		 */
+		String value(final int group, final byte[] data, final int tpdu, final int length)
+		{
+			final DPTXlator t = mapping.translator(group);
+			if (t == null || length < 2)
+				return null;
+			final int service = (data[tpdu] & 0x03) << 8 | data[tpdu + 1] & 0xc0;
+			if (service != GROUP_WRITE && service != GROUP_RESPONSE)
+				return null;
+			final byte[] asdu;
+			if (length == 2) {
+				asdu = buffer(1);
+				asdu[0] = (byte) (data[tpdu + 1] & 0x3f);
+			}
+			else {
+				asdu = buffer(length - 2);
+				System.arraycopy(data, tpdu + 2, asdu, 0, asdu.length);
+			}
+			return DptMapping.translate(t, asdu);
+		}
+
+		public String toString()
+		{
+			return mapping.toString();
+		}
+
+		private byte[] buffer(final int length)
+		{
+			if (buffers[length] == null)
+				buffers[length] = new byte[length];
+			return buffers[length];
+		}
+	}
+
+	/**
+	 * Writes monitor records as JSON Lines or CSV to a channel.
+	 * <p>
+	 * Records are encoded byte by byte into a reused buffer, without creating strings or other
+	 * objects per record; only a translated group value (option -dpt) is obtained as string. The
+	 * buffer is written to the channel when it lacks room for the next record, and on
+	 * {@link #flush(long)} after the flush interval. Every record has the same fields:
+	 * <ul>
+	 * <li>time: receive time in microseconds since the epoch</li>
+	 * <li>line: line identifier</li>
+	 * <li>type: data, ack, nak, busy, gap, repeated, omitted, anomaly, normal, or other</li>
+	 * <li>src, dst: source and destination address of a data frame</li>
+	 * <li>prio: frame priority [system|normal|urgent|low]</li>
+	 * <li>rep: whether the frame is a repetition</li>
+	 * <li>apci: application layer service name, or the service code in hexadecimal</li>
+	 * <li>data: application data in hexadecimal; the raw frame for type other; the gap duration
+	 * in milliseconds for type gap; the number of repetitions of the previous data frame of the
+	 * line for type repeated; the number of other frames not shown during an overload for type
+	 * omitted</li>
+	 * <li>value: group value translated by datapoint type; the description for types anomaly
+	 * (an anomaly started, src is set if caused by a source) and normal (an anomaly ended)</li>
+	 * </ul>
+	 * Fields not applicable to a record are <code>null</code> (JSON) or empty (CSV). A CSV output
+	 * starts with a header line of the field names.
+	 */
+	private static final class StructuredOutput
+	{
+		static final int JSON = 1;
+		static final int CSV = 2;
+
+		private static final String[] fields = { "time", "line", "type", "src", "dst", "prio",
+			"rep", "apci", "data", "value" };
+		private static final String hexDigits = "0123456789abcdef";
+		// max. time encoded records are kept in the buffer
+		private static final long flushInterval = 200 * 1000000L;
+		// upper bound of a record without frame data and group value
+		private static final int maxRecordSize = 512;
+
+		private final WritableByteChannel ch;
+		private final boolean closeChannel;
+		private final boolean json;
+		private final byte[] buf = new byte[64 * 1024];
+		private final ByteBuffer bb = ByteBuffer.wrap(buf);
+		private final byte[] digits = new byte[20];
+		private int pos;
+		private long flushed;
+
+		/**
+		 * @param ch output channel
+		 * @param closeChannel <code>true</code> to close the channel on {@link #close()}
+		 * @param format output format, {@link #JSON} or {@link #CSV}
+		 */
+		StructuredOutput(final WritableByteChannel ch, final boolean closeChannel,
+			final int format)
+		{
+			this.ch = ch;
+			this.closeChannel = closeChannel;
+			json = format == JSON;
+			flushed = System.nanoTime();
+			if (!json) {
+				for (int i = 0; i < fields.length; i++) {
+					if (i > 0)
+						put(',');
+					ascii(fields[i]);
+				}
+				put('\n');
+			}
+		}
+
+		/**
+		 * Writes the record of a cEMI busmonitor frame containing a TP1 frame.
+		 * <p>
+		 *
+		 * @param line line identifier
+		 * @param time receive time in nanoseconds since the epoch
+		 * @param f buffer containing the cEMI frame
+		 * @param length length of the cEMI frame
+		 * @param values group value translation, or <code>null</code>
+		 * @throws IOException on error writing the channel
+		 */
+		void frame(final int line, final long time, final byte[] f, final int length,
+			final GroupValues values) throws IOException
+		{
+			final int raw = TP1Frame.offset(f);
+			String value = null;
+			if (values != null && TP1Frame.isData(f, length, raw)
+					&& TP1Frame.isGroupDestination(f, raw)) {
+				final int tpdu = TP1Frame.tpdu(f, raw);
+				value = values.value(TP1Frame.destination(f, raw), f, tpdu, Math.min(
+						TP1Frame.tpduLength(f, raw), length - tpdu));
+			}
+			reserve(maxRecordSize + 2 * length + (value != null ? 6 * value.length() : 0));
+			begin(line, time);
+			field(2);
+			if (length - raw == 1) {
+				final int ack = f[raw] & 0xff;
+				name(ack == 0xcc ? "ack" : ack == 0xc0 ? "busy" : "nak");
+				nulls(3, 10);
+			}
+			else if (!TP1Frame.isData(f, length, raw)) {
+				name("other");
+				nulls(3, 8);
+				field(8);
+				hex(f, raw, length - raw);
+				field(9);
+				none();
+			}
+			else {
+				name("data");
+				final boolean group = TP1Frame.isGroupDestination(f, raw);
+				field(3);
+				address(TP1Frame.source(f, raw), false);
+				field(4);
+				address(TP1Frame.destination(f, raw), group);
+				field(5);
+				name(FrameFilter.priorities[TP1Frame.priority(f, raw)]);
+				field(6);
+				ascii(TP1Frame.isRepeated(f, raw) ? "true" : "false");
+				field(7);
+				final int service = TP1Frame.service(f, length, raw);
+				if (service == -1)
+					none();
+				else
+					service(service);
+				final int tpdu = TP1Frame.tpdu(f, raw);
+				final int tpduLength = Math.min(TP1Frame.tpduLength(f, raw), length - tpdu);
+				field(8);
+				if (tpduLength > 2)
+					hex(f, tpdu + 2, tpduLength - 2);
+				else if (tpduLength == 2 && (service == 0x40 || service == 0x80)) {
+					// group value contained in the APCI
+					digits[0] = (byte) (f[tpdu + 1] & 0x3f);
+					hex(digits, 0, 1);
+				}
+				else
+					none();
+				field(9);
+				if (value != null)
+					string(value);
+				else
+					none();
+			}
+			end();
+		}
+
+		/**
+		 * Writes the record of a monitoring gap.
+		 * <p>
+		 *
+		 * @param line line identifier
+		 * @param time reconnect time in nanoseconds since the epoch
+		 * @param duration gap duration in nanoseconds
+		 * @throws IOException on error writing the channel
+		 */
+		void gap(final int line, final long time, final long duration) throws IOException
+		{
+			count("gap", line, time, duration / 1000000);
+		}
+
+		/**
+		 * Writes the record of repetitions of the previous data frame of a line not shown.
+		 * <p>
+		 *
+		 * @param line line identifier
+		 * @param time receive time of the last repetition in nanoseconds since the epoch
+		 * @param repetitions number of repetitions
+		 * @throws IOException on error writing the channel
+		 */
+		void repeated(final int line, final long time, final int repetitions) throws IOException
+		{
+			count("repeated", line, time, repetitions);
+		}
+
+		/**
+		 * Writes the record of frames not shown during an overload of a line.
+		 * <p>
+		 *
+		 * @param line line identifier
+		 * @param time time the overload ended in nanoseconds since the epoch
+		 * @param frames number of frames
+		 * @throws IOException on error writing the channel
+		 */
+		void omitted(final int line, final long time, final long frames) throws IOException
+		{
+			count("omitted", line, time, frames);
+		}
+
+		/**
+		 * Writes buffered records to the channel if the flush interval has elapsed.
+		 * <p>
+		 *
+		 * @param now current time obtained by {@link System#nanoTime()}
+		 * @throws IOException on error writing the channel
+		 */
+		void flush(final long now) throws IOException
+		{
+			if (now - flushed >= flushInterval) {
+				drain();
+				flushed = now;
+			}
+		}
+
+		// writes all buffered records to the channel
+		void flush() throws IOException
+		{
+			drain();
+		}
+
+		void close() throws IOException
+		{
+			try {
+				drain();
+			}
+			finally {
+				if (closeChannel)
+					ch.close();
+			}
+		}
+
+		/**
+		 * Writes the record of an anomaly which started or ended.
+		 * <p>
+		 *
+		 * @param line line identifier
+		 * @param time detection time in nanoseconds since the epoch
+		 * @param source source address causing the anomaly, or -1
+		 * @param description anomaly description
+		 * @param start <code>true</code> if the anomaly started, <code>false</code> if it ended
+		 * @throws IOException on error writing the channel
+		 */
+		void anomaly(final int line, final long time, final int source, final String description,
+			final boolean start) throws IOException
+		{
+			reserve(maxRecordSize + 6 * description.length());
+			begin(line, time);
+			field(2);
+			name(start ? "anomaly" : "normal");
+			field(3);
+			if (source != -1)
+				address(source, false);
+			else
+				none();
+			nulls(4, 9);
+			field(9);
+			string(description);
+			end();
+		}
+
+		// writes a record of the given type which only has a number as data
+		private void count(final String type, final int line, final long time, final long value)
+			throws IOException
+		{
+			reserve(maxRecordSize);
+			begin(line, time);
+			field(2);
+			name(type);
+			nulls(3, 8);
+			field(8);
+			number(value);
+			field(9);
+			none();
+			end();
+		}
+
+		private void begin(final int line, final long time)
+		{
+			field(0);
+			number(time / 1000);
+			field(1);
+			number(line);
+		}
+
+		private void reserve(final int length) throws IOException
+		{
+			if (buf.length - pos < length)
+				drain();
+		}
+
+		private void end()
+		{
+			if (json)
+				put('}');
+			put('\n');
+		}
+
+		private void field(final int i)
+		{
+			if (json) {
+				put(i == 0 ? '{' : ',');
+				put('"');
+				ascii(fields[i]);
+				put('"');
+				put(':');
+			}
+			else if (i > 0)
+				put(',');
+		}
+
+		private void nulls(final int from, final int to)
+		{
+			for (int i = from; i < to; i++) {
+				field(i);
+				none();
+			}
+		}
+
+		private void none()
+		{
+			if (json)
+				ascii("null");
+		}
+
+		private void address(final int address, final boolean group)
+		{
+			quote();
+			if (group) {
+				number(address >>> 11 & 0x1f);
+				put('/');
+				number(address >>> 8 & 0x07);
+				put('/');
+			}
+			else {
+				number(address >>> 12 & 0x0f);
+				put('.');
+				number(address >>> 8 & 0x0f);
+				put('.');
+			}
+			number(address & 0xff);
+			quote();
+		}
+
+		private void service(final int service)
+		{
+			for (int i = 0; i < FrameFilter.apciCodes.length; i++)
+				if (FrameFilter.apciCodes[i] == service) {
+					name(FrameFilter.apciNames[i]);
+					return;
+				}
+			quote();
+			ascii("0x");
+			put(hexDigits.charAt(service >>> 8 & 0x0f));
+			put(hexDigits.charAt(service >>> 4 & 0x0f));
+			put(hexDigits.charAt(service & 0x0f));
+			quote();
+		}
+
+		private void hex(final byte[] data, final int offset, final int length)
+		{
+			quote();
+			for (int i = offset; i < offset + length; i++) {
+				put(hexDigits.charAt(data[i] >>> 4 & 0x0f));
+				put(hexDigits.charAt(data[i] & 0x0f));
+			}
+			quote();
+		}
+
+		private void number(final long value)
+		{
+			long v = value;
+			if (v < 0) {
+				put('-');
+				v = -v;
+			}
+			int n = 0;
+			do {
+				digits[n++] = (byte) ('0' + v % 10);
+				v /= 10;
+			}
+			while (v != 0);
+			while (n > 0)
+				put(digits[--n]);
+		}
+
+		// a name or other string not requiring escapes
+		private void name(final String s)
+		{
+			quote();
+			ascii(s);
+			quote();
+		}
+
+		// quoted and escaped string, UTF-8 encoded
+		private void string(final String s)
+		{
+			put('"');
+			for (int i = 0; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				if (c == '"')
+					put(json ? '\\' : '"');
+				else if (json && c == '\\')
+					put('\\');
+				else if (json && c < 0x20) {
+					ascii("\\u00");
+					put(hexDigits.charAt(c >>> 4));
+					put(hexDigits.charAt(c & 0x0f));
+					continue;
+				}
+				if (c < 0x80)
+					put(c);
+				else if (c < 0x800) {
+					put(0xc0 | c >>> 6);
+					put(0x80 | c & 0x3f);
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+					final int cp = Character.toCodePoint(c, s.charAt(++i));
+					put(0xf0 | cp >>> 18);
+					put(0x80 | cp >>> 12 & 0x3f);
+					put(0x80 | cp >>> 6 & 0x3f);
+					put(0x80 | cp & 0x3f);
+				}
+				else {
+					put(0xe0 | c >>> 12);
+					put(0x80 | c >>> 6 & 0x3f);
+					put(0x80 | c & 0x3f);
+				}
+			}
+			put('"');
+		}
+
+		// JSON strings are quoted, CSV fields only if necessary
+		private void quote()
+		{
+			if (json)
+				put('"');
+		}
+
+		private void ascii(final String s)
+		{
+			for (int i = 0; i < s.length(); i++)
+				put(s.charAt(i));
+		}
+
+		private void put(final int b)
+		{
+			buf[pos++] = (byte) b;
+		}
+
+		private void drain() throws IOException
+		{
+			bb.limit(pos);
+			bb.position(0);
+			try {
+				while (bb.hasRemaining())
+					ch.write(bb);
+			}
+			finally {
+				pos = 0;
+				bb.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes received frames as ETS telegram log (XML CommunicationLog), for analysis of a
+	 * recording in the ETS bus and group monitor.
+	 * <p>
+	 * Every frame is written as <code>Telegram</code> element of service
+	 * <code>L_Busmon.ind</code>, with the complete cEMI frame as raw data, enclosed by
+	 * <code>RecordStart</code> and <code>RecordStop</code>. The frames of all lines are written
+	 * into one log; gaps and other records of the monitor are omitted.<br>
+	 * Like {@link StructuredOutput}, elements are encoded byte by byte into a reused buffer, which is
+	 * written to the channel when it lacks room for the next element, and on {@link #flush(long)}
+	 * after the flush interval. No document tree is built, the memory used is constant. Timestamps
+	 * are UTC in ISO 8601 format with 100 ns resolution; the date part is computed once per day.
+	 */
+	private static final class TelegramLog
+	{
+		// output format identifier, in addition to the structured output formats
+		static final int ETS = 3;
+
+		private static final String hexDigits = "0123456789ABCDEF";
+		private static final long flushInterval = 200 * 1000000L;
+		private static final long nanosPerDay = 86400 * 1000000000L;
+		// upper bound of a telegram element without raw data
+		private static final int maxElementSize = 160;
+
+		private final WritableByteChannel ch;
+		private final boolean closeChannel;
+		private final byte[] buf = new byte[64 * 1024];
+		private final ByteBuffer bb = ByteBuffer.wrap(buf);
+		private int pos;
+		private long flushed;
+
+		// the date part of the current day, "yyyy-mm-dd"
+		private final byte[] date = new byte[10];
+		private long day = -1;
+
+		/**
+		 * @param ch output channel
+		 * @param closeChannel <code>true</code> to close the channel on {@link #close(long)}
+		 * @param medium KNX medium of the monitored lines
+		 * @param connection the monitored lines
+		 * @param start start time in nanoseconds since the epoch
+		 */
+		TelegramLog(final WritableByteChannel ch, final boolean closeChannel, final int medium,
+			final String connection, final long start)
+		{
+			this.ch = ch;
+			this.closeChannel = closeChannel;
+			flushed = System.nanoTime();
+			ascii("<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n");
+			ascii("<CommunicationLog xmlns=\"http://knx.org/xml/telegrams/01\">\r\n");
+			ascii("  <RecordStart Timestamp=\"");
+			timestamp(start);
+			ascii("\" Mode=\"Busmonitor\" ConnectionName=\"");
+			escaped(connection);
+			ascii("\" MediumType=\"");
+			ascii(medium == KNXMediumSettings.MEDIUM_RF ? "RF"
+					: medium == KNXMediumSettings.MEDIUM_PL110
+							|| medium == KNXMediumSettings.MEDIUM_PL132 ? "PL" : "TP");
+			ascii("\" />\r\n");
+		}
+
+		/**
+		 * Writes the telegram element of a cEMI busmonitor frame.
+		 * <p>
+		 *
+		 * @param time receive time in nanoseconds since the epoch
+		 * @param f buffer containing the cEMI frame
+		 * @param length length of the cEMI frame
+		 * @throws IOException on error writing the channel
+		 */
+		void telegram(final long time, final byte[] f, final int length) throws IOException
+		{
+			reserve(maxElementSize + 2 * length);
+			ascii("  <Telegram Timestamp=\"");
+			timestamp(time);
+			ascii("\" Service=\"L_Busmon.ind\" FrameFormat=\"CommonEmi\" RawData=\"");
+			for (int i = 0; i < length; i++) {
+				put(hexDigits.charAt(f[i] >>> 4 & 0x0f));
+				put(hexDigits.charAt(f[i] & 0x0f));
+			}
+			ascii("\" />\r\n");
+		}
+
+		/**
+		 * Writes buffered elements to the channel if the flush interval has elapsed.
+		 * <p>
+		 *
+		 * @param now current time obtained by {@link System#nanoTime()}
+		 * @throws IOException on error writing the channel
+		 */
+		void flush(final long now) throws IOException
+		{
+			if (now - flushed >= flushInterval) {
+				drain();
+				flushed = now;
+			}
+		}
+
+		/**
+		 * Ends the log and closes it.
+		 * <p>
+		 *
+		 * @param stop stop time in nanoseconds since the epoch
+		 * @throws IOException on error writing the channel
+		 */
+		void close(final long stop) throws IOException
+		{
+			try {
+				reserve(maxElementSize);
+				ascii("  <RecordStop Timestamp=\"");
+				timestamp(stop);
+				ascii("\" />\r\n</CommunicationLog>\r\n");
+				drain();
+			}
+			finally {
+				if (closeChannel)
+					ch.close();
+			}
+		}
+
+		// writes yyyy-mm-ddThh:mm:ss.fffffffZ
+		private void timestamp(final long time)
+		{
+			final long d = time / nanosPerDay;
+			if (d != day) {
+				day = d;
+				civilDate(d);
+			}
+			for (int i = 0; i < date.length; i++)
+				put(date[i]);
+			put('T');
+			final long t = time - d * nanosPerDay;
+			final long secs = t / 1000000000L;
+			digits(secs / 3600, 2);
+			put(':');
+			digits(secs / 60 % 60, 2);
+			put(':');
+			digits(secs % 60, 2);
+			put('.');
+			digits(t % 1000000000L / 100, 7);
+			put('Z');
+		}
+
+		// converts days since 1970-01-01 to the Gregorian calendar date
+		private void civilDate(final long days)
+		{
+			final long z = days + 719468;
+			final long era = z / 146097;
+			final long doe = z - era * 146097;
+			final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+			final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+			final long mp = (5 * doy + 2) / 153;
+			final long dom = doy - (153 * mp + 2) / 5 + 1;
+			final long month = mp < 10 ? mp + 3 : mp - 9;
+			final long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+			final int p = pos;
+			digits(year, 4);
+			put('-');
+			digits(month, 2);
+			put('-');
+			digits(dom, 2);
+			System.arraycopy(buf, p, date, 0, date.length);
+			pos = p;
+		}
+
+		// writes a number with a fixed count of digits, padded with leading zeros
+		private void digits(final long value, final int count)
+		{
+			long v = value;
+			for (int i = pos + count - 1; i >= pos; i--) {
+				buf[i] = (byte) ('0' + v % 10);
+				v /= 10;
+			}
+			pos += count;
+		}
+
+		// attribute value, escaped and UTF-8 encoded
+		private void escaped(final String s)
+		{
+			for (int i = 0; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				if (c == '&')
+					ascii("&amp;");
+				else if (c == '<')
+					ascii("&lt;");
+				else if (c == '>')
+					ascii("&gt;");
+				else if (c == '"')
+					ascii("&quot;");
+				else if (c < 0x80)
+					put(c);
+				else if (c < 0x800) {
+					put(0xc0 | c >>> 6);
+					put(0x80 | c & 0x3f);
+				}
+				else {
+					put(0xe0 | c >>> 12);
+					put(0x80 | c >>> 6 & 0x3f);
+					put(0x80 | c & 0x3f);
+				}
+			}
+		}
+
+		private void reserve(final int length) throws IOException
+		{
+			if (buf.length - pos < length)
+				drain();
+		}
+
+		private void ascii(final String s)
+		{
+			for (int i = 0; i < s.length(); i++)
+				put(s.charAt(i));
+		}
+
+		private void put(final int b)
+		{
+			buf[pos++] = (byte) b;
+		}
+
+		private void drain() throws IOException
+		{
+			bb.limit(pos);
+			bb.position(0);
+			try {
+				while (bb.hasRemaining())
+					ch.write(bb);
+			}
+			finally {
+				pos = 0;
+				bb.clear();
+			}
+		}
+	}
+
+	/**
+	 * A predicate over the bytes of a cEMI busmonitor frame containing a TP1 frame, compiled from
+	 * a filter expression.
+	 * <p>
+	 * Filter expression syntax:
+	 *
+	 * <pre>
+	 * expr      = and-expr { "or" and-expr }
+	 * and-expr  = unary { "and" unary }
+	 * unary     = "not" unary | "(" expr ")" | condition
+	 * condition = field ( "=" | "!=" ) value | field "in" value-range { "," value-range }
+	 *             | "data" ( "=" | "!=" ) data-pattern | "repeated"
+	 * field     = "src" | "dst" | "apci" | "prio"
+	 * </pre>
+	 *
+	 * Values of <code>src</code> are individual addresses, values of <code>dst</code> are group
+	 * addresses (containing '/') or individual addresses (containing '.'). A value range has the
+	 * form <code>low-high</code>. Values of <code>apci</code> are service names like
+	 * <code>GroupValueWrite</code> or APCI numbers, values of <code>prio</code> are
+	 * <code>system, normal, urgent, low</code>. Keywords and names are case insensitive.<br>
+	 * A data pattern matches the application data following the APCI, given as hexadecimal
+	 * digits, 'x' matches any digit; a trailing '*' matches any further data. Data contained in
+	 * the APCI (up to 6 bits) is matched as one byte, e.g., <code>data=01</code> for a switch
+	 * on.<br>
+	 * Frames which are not L-Data frames, e.g., acknowledgments, do not match any condition, also
+	 * not a negated one.
+	 */
+	private abstract static class FrameFilter
+	{
+		private static final String[] apciNames = { "GroupValueRead", "GroupValueResponse",
+			"GroupValueWrite", "IndividualAddressWrite", "IndividualAddressRead",
+			"IndividualAddressResponse", "ADCRead", "ADCResponse", "MemoryRead", "MemoryResponse",
+			"MemoryWrite", "DeviceDescriptorRead", "DeviceDescriptorResponse", "Restart",
+			"AuthorizeRequest", "AuthorizeResponse", "KeyWrite", "KeyResponse",
+			"PropertyValueRead", "PropertyValueResponse", "PropertyValueWrite",
+			"PropertyDescriptionRead", "PropertyDescriptionResponse",
+			"IndividualAddressSerialNumberRead", "IndividualAddressSerialNumberResponse",
+			"IndividualAddressSerialNumberWrite", };
+		private static final int[] apciCodes = { 0x000, 0x040, 0x080, 0x0c0, 0x100, 0x140, 0x180,
+			0x1c0, 0x200, 0x240, 0x280, 0x300, 0x340, 0x380, 0x3d1, 0x3d2, 0x3d3, 0x3d4, 0x3d5,
+			0x3d6, 0x3d7, 0x3d8, 0x3d9, 0x3dc, 0x3dd, 0x3de, };
+
+		private static final String[] priorities = { "system", "normal", "urgent", "low" };
+
+		/**
+		 * Returns whether the supplied cEMI busmonitor frame matches this filter.
+		 * <p>
+		 *
+		 * @param f buffer containing the cEMI frame
+		 * @param length length of the cEMI frame in <code>f</code>
+		 * @return <code>true</code> if frame matches, <code>false</code> otherwise
+		 */
+		final boolean accept(final byte[] f, final int length)
+		{
+			return match(f, length, TP1Frame.offset(f));
+		}
+
+		abstract boolean match(byte[] f, int length, int raw);
+
+		/**
+		 * Compiles a filter expression.
+		 * <p>
+		 *
+		 * @param expr filter expression
+		 * @return the compiled filter
+		 * @throws KNXIllegalArgumentException on syntax errors in the expression
+		 */
+		static FrameFilter compile(final String expr)
+		{
+			final Parser p = new Parser(expr);
+			final FrameFilter f = p.expr();
+			if (p.peek() != null)
+				throw new KNXIllegalArgumentException("filter: unexpected '" + p.peek() + "'");
+			return f;
+		}
+
+		// service code for an APCI service name or number
+		static int apci(final String value)
+		{
+			for (int i = 0; i < apciNames.length; i++)
+				if (apciNames[i].equalsIgnoreCase(value))
+					return apciCodes[i];
+			return Integer.decode(value).intValue();
+		}
+
+		private static final class Parser
+		{
+			private final List tokens = new ArrayList();
+			private int next;
+
+			Parser(final String expr)
+			{
+				int i = 0;
+				while (i < expr.length()) {
+					final char c = expr.charAt(i);
+					if (Character.isWhitespace(c))
+						i++;
+					else if (c == '(' || c == ')' || c == ',' || c == '=')
+						tokens.add(expr.substring(i, ++i));
+					else if (expr.startsWith("!=", i)) {
+						tokens.add("!=");
+						i += 2;
+					}
+					else {
+						final int start = i;
+						while (i < expr.length() && !Character.isWhitespace(expr.charAt(i))
+								&& "()=,!".indexOf(expr.charAt(i)) == -1)
+							i++;
+						if (i == start)
+							throw new KNXIllegalArgumentException("filter: unexpected '" + c + "'");
+						tokens.add(expr.substring(start, i));
+					}
+				}
+			}
+
+			FrameFilter expr()
+			{
+				FrameFilter f = and();
+				while (accept("or"))
+					f = new Or(f, and());
+				return f;
+			}
+
+			private FrameFilter and()
+			{
+				FrameFilter f = unary();
+				while (accept("and"))
+					f = new And(f, unary());
+				return f;
+			}
+
+			private FrameFilter unary()
+			{
+				if (accept("not"))
+					return new Not(unary());
+				if (accept("(")) {
+					final FrameFilter f = expr();
+					expect(")");
+					return f;
+				}
+				return condition();
+			}
+
+			private FrameFilter condition()
+			{
+				final String field = take().toLowerCase();
+				if (field.equals("repeated"))
+					return new Repeated();
+				if (field.equals("data")) {
+					final boolean negate = accept("!=");
+					if (!negate)
+						expect("=");
+					final FrameFilter f = new Data(take());
+					return negate ? (FrameFilter) new Not(f) : f;
+				}
+				final boolean in = accept("in");
+				final boolean negate = !in && accept("!=");
+				if (!in && !negate)
+					expect("=");
+
+				final List ranges = new ArrayList();
+				do {
+					final String value = take();
+					final int dash = in ? value.indexOf('-') : -1;
+					final String low = dash > 0 ? value.substring(0, dash) : value;
+					final String high = dash > 0 ? value.substring(dash + 1) : value;
+					ranges.add(new int[] { parse(field, low), parse(field, high) });
+				}
+				while (in && accept(","));
+
+				final int[] lows = new int[ranges.size()];
+				final int[] highs = new int[ranges.size()];
+				for (int i = 0; i < lows.length; i++) {
+					lows[i] = ((int[]) ranges.get(i))[0];
+					highs[i] = ((int[]) ranges.get(i))[1];
+				}
+				final FrameFilter f = new Field(field, lows, highs);
+				return negate ? (FrameFilter) new Not(f) : f;
+			}
+
+			// returns the field value, a group address is marked by Field.groupFlag
+			private int parse(final String field, final String value)
+			{
+				try {
+					if (field.equals("src"))
+						return new IndividualAddress(value).getRawAddress();
+					if (field.equals("dst")) {
+						if (value.indexOf('/') != -1)
+							return Field.groupFlag | new GroupAddress(value).getRawAddress();
+						return new IndividualAddress(value).getRawAddress();
+					}
+					if (field.equals("apci"))
+						return apci(value);
+					if (field.equals("prio")) {
+						for (int i = 0; i < priorities.length; i++)
+							if (priorities[i].equalsIgnoreCase(value))
+								return i;
+					}
+				}
+				catch (final KNXFormatException e) {}
+				catch (final NumberFormatException e) {}
+				throw new KNXIllegalArgumentException("filter: invalid " + field + " value " + value);
+			}
+
+			String peek()
+			{
+				return next < tokens.size() ? (String) tokens.get(next) : null;
+			}
+
+			private String take()
+			{
+				final String t = peek();
+				if (t == null)
+					throw new KNXIllegalArgumentException("filter: unexpected end of expression");
+				next++;
+				return t;
+			}
+
+			private boolean accept(final String token)
+			{
+				if (token.equalsIgnoreCase(peek())) {
+					next++;
+					return true;
+				}
+				return false;
+			}
+
+			private void expect(final String token)
+			{
+				if (!accept(token))
+					throw new KNXIllegalArgumentException("filter: expected '" + token + "'");
+			}
+		}
+
+		private static final class And extends FrameFilter
+		{
+			private final FrameFilter left;
+			private final FrameFilter right;
+
+			And(final FrameFilter left, final FrameFilter right)
+			{
+				this.left = left;
+				this.right = right;
+			}
+
+			boolean match(final byte[] f, final int length, final int raw)
+			{
+				return left.match(f, length, raw) && right.match(f, length, raw);
+			}
+		}
+
+		private static final class Or extends FrameFilter
+		{
+			private final FrameFilter left;
+			private final FrameFilter right;
+
+			Or(final FrameFilter left, final FrameFilter right)
+			{
+				this.left = left;
+				this.right = right;
+			}
+
+			boolean match(final byte[] f, final int length, final int raw)
+			{
+				return left.match(f, length, raw) || right.match(f, length, raw);
+			}
+		}
+
+		// negates conditions on L-Data frames only, other frames do not match any condition
+		private static final class Not extends FrameFilter
+		{
+			private final FrameFilter filter;
+
+			Not(final FrameFilter filter)
+			{
+				this.filter = filter;
+			}
+
+			boolean match(final byte[] f, final int length, final int raw)
+			{
+				return TP1Frame.isData(f, length, raw) && !filter.match(f, length, raw);
+			}
+		}
+
+		private static final class Repeated extends FrameFilter
+		{
+			boolean match(final byte[] f, final int length, final int raw)
+			{
+				return TP1Frame.isData(f, length, raw) && TP1Frame.isRepeated(f, raw);
+			}
+		}
+
+		private static final class Data extends FrameFilter
+		{
+			private final byte[] values;
+			private final byte[] masks;
+			// pattern ends with '*', i.e., it matches a prefix of the data
+			private final boolean prefix;
+
+			Data(final String pattern)
+			{
+				prefix = pattern.endsWith("*");
+				final int digits = pattern.length() - (prefix ? 1 : 0);
+				if (digits % 2 != 0)
+					throw new KNXIllegalArgumentException("filter: invalid data value " + pattern);
+				values = new byte[digits / 2];
+				masks = new byte[digits / 2];
+				for (int i = 0; i < digits; i++) {
+					final char c = pattern.charAt(i);
+					final int shift = i % 2 == 0 ? 4 : 0;
+					if (c == 'x' || c == 'X')
+						continue;
+					final int v = Character.digit(c, 16);
+					if (v == -1)
+						throw new KNXIllegalArgumentException("filter: invalid data value "
+								+ pattern);
+					values[i / 2] |= v << shift;
+					masks[i / 2] |= 0x0f << shift;
+				}
+			}
+
+			boolean match(final byte[] f, final int length, final int raw)
+			{
+				if (!TP1Frame.isData(f, length, raw) || TP1Frame.service(f, length, raw) == -1)
+					return false;
+				final int tpdu = TP1Frame.tpdu(f, raw);
+				final int tpduLength = Math.min(TP1Frame.tpduLength(f, raw), length - tpdu);
+				final int size = tpduLength == 2 ? 1 : tpduLength - 2;
+				if (size < values.length || !prefix && size != values.length)
+					return false;
+				for (int i = 0; i < values.length; i++) {
+					// data contained in the APCI is matched as one byte
+					final int b = tpduLength == 2 ? f[tpdu + 1] & 0x3f : f[tpdu + 2 + i];
+					if (((b ^ values[i]) & masks[i] & 0xff) != 0)
+						return false;
+				}
+				return true;
+			}
+		}
+
+		private static final class Field extends FrameFilter
+		{
+			static final int groupFlag = 0x10000;
+
+			private static final int SRC = 0;
+			private static final int DST = 1;
+			private static final int APCI = 2;
+			private static final int PRIO = 3;
+
+			private final int field;
+			private final int[] lows;
+			private final int[] highs;
+
+			Field(final String name, final int[] lows, final int[] highs)
+			{
+				if (name.equals("src"))
+					field = SRC;
+				else if (name.equals("dst"))
+					field = DST;
+				else if (name.equals("apci"))
+					field = APCI;
+				else if (name.equals("prio"))
+					field = PRIO;
+				else
+					throw new KNXIllegalArgumentException("filter: unknown field " + name);
+				this.lows = lows;
+				this.highs = highs;
+			}
+
+			boolean match(final byte[] f, final int length, final int raw)
+			{
+				if (!TP1Frame.isData(f, length, raw))
+					return false;
+				final int v;
+				if (field == SRC)
+					v = TP1Frame.source(f, raw);
+				else if (field == DST)
+					v = TP1Frame.destination(f, raw)
+							| (TP1Frame.isGroupDestination(f, raw) ? groupFlag : 0);
+				else if (field == APCI)
+					v = TP1Frame.service(f, length, raw);
+				else
+					v = TP1Frame.priority(f, raw);
+				for (int i = 0; i < lows.length; i++)
+					if (v >= lows[i] && v <= highs[i])
+						return true;
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Bus statistics of TP1 traffic over a summary interval.
+	 * <p>
+	 * All counters are kept in primitive arrays indexed by the 16 bit address, so the memory used is
+	 * fixed and independent of the traffic. Only the consumer thread uses this class.<br>
+	 * The bus load is estimated from the frame lengths using the TP1 character timing: a character
+	 * takes 13 bit times (including the pause between characters), a data frame is preceded by at
+	 * least 50 bit times of line idle, an acknowledgment by 15 bit times.
+	 */
+	private static final class BusStatistics
+	{
+		// TP1 bit time in nanoseconds at 9600 bit/s
+		private static final long bitTime = 1000000000L / 9600;
+		private static final int topCount = 10;
+		// gap histogram buckets, bucket i counts gaps in [2^(i-1), 2^i) milliseconds
+		private static final int gapBuckets = 16;
+
+		private final int[] sources = new int[0x10000];
+		private final int[] destinations = new int[0x10000];
+		private final long[] gaps = new long[gapBuckets];
+		private final long interval;
+
+		private long start;
+		private long frames;
+		private long repeated;
+		private long acks;
+		private long naks;
+		private long busy;
+		private long busBits;
+		private long last;
+
+		private long totalFrames;
+		private double maxLoad;
+
+		/**
+		 * @param interval summary interval in nanoseconds
+		 */
+		BusStatistics(final long interval)
+		{
+			this.interval = interval;
+			start = System.nanoTime();
+		}
+
+		void add(final byte[] f, final int length, final long timestamp)
+		{
+			final int raw = TP1Frame.offset(f);
+			if (length - raw == 1) {
+				final int ack = f[raw] & 0xff;
+				if (ack == 0xcc)
+					acks++;
+				else if (ack == 0xc0)
+					busy++;
+				else
+					naks++;
+				busBits += 15 + 13;
+			}
+			else {
+				busBits += 50 + 13 * (length - raw);
+				frames++;
+				if (last != 0) {
+					final long ms = (timestamp - last) / 1000000;
+					gaps[Math.min(gapBuckets - 1, 64 - Long.numberOfLeadingZeros(ms))]++;
+				}
+				last = timestamp;
+			}
+			if (!TP1Frame.isData(f, length, raw))
+				return;
+			if (TP1Frame.isRepeated(f, raw))
+				repeated++;
+			sources[TP1Frame.source(f, raw)]++;
+			if (TP1Frame.isGroupDestination(f, raw))
+				destinations[TP1Frame.destination(f, raw)]++;
+		}
+
+		/**
+		 * Returns the summary of the current interval and starts a new interval, if the interval
+		 * has elapsed.
+		 * <p>
+		 *
+		 * @param now current time obtained by {@link System#nanoTime()}
+		 * @param force <code>true</code> to end the interval even if it has not elapsed yet
+		 * @return the summary, or <code>null</code> if the interval has not elapsed
+		 */
+		String summary(final long now, final boolean force)
+		{
+			final long elapsed = now - start;
+			if (elapsed < interval && !force || elapsed <= 0)
+				return null;
+			final double secs = elapsed / 1e9;
+			final double load = 100.0 * busBits * bitTime / elapsed;
+			maxLoad = Math.max(maxLoad, load);
+			totalFrames += frames;
+
+			final StringBuffer sb = new StringBuffer();
+			sb.append("bus statistics of last ").append(format(secs)).append(" s: ");
+			sb.append(frames).append(" frames (").append(format(frames / secs)).append("/s), ");
+			sb.append("bus load ").append(format(load)).append(" % (max. ")
+					.append(format(maxLoad)).append(" %), ");
+			sb.append(repeated).append(" repeated, ").append(acks).append(" ACK, ").append(naks)
+					.append(" NAK, ").append(busy).append(" BUSY");
+			appendTop(sb, "top sources [frames/s]:", sources, false, secs);
+			appendTop(sb, "top group destinations [frames/s]:", destinations, true, secs);
+			sb.append(sep).append("  inter-frame gaps [ms]:");
+			for (int i = 0; i < gapBuckets; i++)
+				if (gaps[i] > 0)
+					sb.append(' ').append(i == 0 ? "<1" : "<" + (1 << i)).append('=')
+							.append(gaps[i]);
+
+			start = now;
+			frames = repeated = acks = naks = busy = busBits = 0;
+			Arrays.fill(sources, 0);
+			Arrays.fill(destinations, 0);
+			Arrays.fill(gaps, 0);
+			return sb.toString();
+		}
+
+		private static void appendTop(final StringBuffer sb, final String title,
+			final int[] counts, final boolean group, final double secs)
+		{
+			// indices of the highest counts, in descending order
+			final int[] top = new int[topCount];
+			int n = 0;
+			for (int a = 0; a < counts.length; a++) {
+				final int c = counts[a];
+				if (c == 0 || n == topCount && c <= counts[top[n - 1]])
+					continue;
+				int i = n < topCount ? n++ : n - 1;
+				for (; i > 0 && counts[top[i - 1]] < c; i--)
+					top[i] = top[i - 1];
+				top[i] = a;
+			}
+			if (n == 0)
+				return;
+			sb.append(sep).append("  ").append(title);
+			for (int i = 0; i < n; i++) {
+				final int a = top[i];
+				sb.append(' ').append(group ? new GroupAddress(a).toString()
+						: new IndividualAddress(a).toString());
+				sb.append('=').append(format(counts[a] / secs));
+			}
+		}
+
+		private static String format(final double d)
+		{
+			return Double.toString(Math.round(d * 10) / 10.0);
+		}
+	}
+
+	/**
+	 * Space-Saving summary for approximate frequency counts of the most frequent keys.
+	 * <p>
+	 * The summary monitors a fixed number of keys. A key not monitored replaces the key with the
+	 * lowest count, inheriting that count as overestimation error. Hence, the count of a key is
+	 * never underestimated, and overestimated by at most its error.<br>
+	 * Summaries are mergeable: merging adds the counts of common keys; a key missing in one summary
+	 * gets that summary's minimum count added to count and error. This allows combining summaries of
+	 * several time windows, or of several monitors.
+	 */
+	private static final class SpaceSaving
+	{
+		final int[] keys;
+		final long[] counts;
+		final long[] errors;
+		int size;
+
+		// union of two summaries during merge
+		private final int[] mergeKeys;
+		private final long[] mergeCounts;
+		private final long[] mergeErrors;
+
+		SpaceSaving(final int capacity)
+		{
+			keys = new int[capacity];
+			counts = new long[capacity];
+			errors = new long[capacity];
+			mergeKeys = new int[2 * capacity];
+			mergeCounts = new long[2 * capacity];
+			mergeErrors = new long[2 * capacity];
+		}
+
+		void offer(final int key)
+		{
+			for (int i = 0; i < size; i++)
+				if (keys[i] == key) {
+					counts[i]++;
+					return;
+				}
+			if (size < keys.length) {
+				keys[size] = key;
+				counts[size] = 1;
+				errors[size] = 0;
+				size++;
+				return;
+			}
+			final int min = indexOfMin();
+			keys[min] = key;
+			errors[min] = counts[min];
+			counts[min]++;
+		}
+
+		// the count of any key not monitored is at most this value
+		long minCount()
+		{
+			return size < keys.length ? 0 : counts[indexOfMin()];
+		}
+
+		void clear()
+		{
+			size = 0;
+		}
+
+		void merge(final SpaceSaving other)
+		{
+			final long min = minCount();
+			final long otherMin = other.minCount();
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				final int j = other.indexOf(keys[i]);
+				mergeKeys[n] = keys[i];
+				mergeCounts[n] = counts[i] + (j != -1 ? other.counts[j] : otherMin);
+				mergeErrors[n] = errors[i] + (j != -1 ? other.errors[j] : otherMin);
+				n++;
+			}
+			for (int j = 0; j < other.size; j++) {
+				if (indexOf(other.keys[j]) != -1)
+					continue;
+				mergeKeys[n] = other.keys[j];
+				mergeCounts[n] = other.counts[j] + min;
+				mergeErrors[n] = other.errors[j] + min;
+				n++;
+			}
+			// keep the keys with the highest counts
+			size = 0;
+			while (size < keys.length && n > 0) {
+				int max = 0;
+				for (int i = 1; i < n; i++)
+					if (mergeCounts[i] > mergeCounts[max])
+						max = i;
+				keys[size] = mergeKeys[max];
+				counts[size] = mergeCounts[max];
+				errors[size] = mergeErrors[max];
+				size++;
+				n--;
+				mergeKeys[max] = mergeKeys[n];
+				mergeCounts[max] = mergeCounts[n];
+				mergeErrors[max] = mergeErrors[n];
+			}
+		}
+
+		private int indexOf(final int key)
+		{
+			for (int i = 0; i < size; i++)
+				if (keys[i] == key)
+					return i;
+			return -1;
+		}
+
+		private int indexOfMin()
+		{
+			int min = 0;
+			for (int i = 1; i < size; i++)
+				if (counts[i] < counts[min])
+					min = i;
+			return min;
+		}
+	}
+
+	/**
+	 * Approximate top senders and destinations over a sliding time window, using Space-Saving
+	 * summaries.
+	 * <p>
+	 * The window is divided into panes, each pane with its own summaries. When the current pane
+	 * ends, the summaries of all panes are merged and reported, and the oldest pane is cleared and
+	 * reused for the next one. Memory is fixed by the number of panes and the summary capacity.
+	 */
+	private static final class TopTalkers
+	{
+		private static final int panes = 6;
+		// destination group addresses are distinguished from individual addresses by this flag
+		private static final int groupFlag = 0x10000;
+
+		private final SpaceSaving[] sources = new SpaceSaving[panes];
+		private final SpaceSaving[] destinations = new SpaceSaving[panes];
+		private final SpaceSaving mergedSources;
+		private final SpaceSaving mergedDestinations;
+		private final int top;
+		private final long paneLength;
+
+		private int pane;
+		private long paneStart;
+
+		/**
+		 * @param top number of top entries to report
+		 * @param window window length in nanoseconds
+		 */
+		TopTalkers(final int top, final long window)
+		{
+			this.top = top;
+			// monitor more keys than reported to keep the estimation error low
+			final int capacity = Math.max(64, 8 * top);
+			for (int i = 0; i < panes; i++) {
+				sources[i] = new SpaceSaving(capacity);
+				destinations[i] = new SpaceSaving(capacity);
+			}
+			mergedSources = new SpaceSaving(capacity);
+			mergedDestinations = new SpaceSaving(capacity);
+			paneLength = window / panes;
+			paneStart = System.nanoTime();
+		}
+
+		void add(final byte[] f, final int length)
+		{
+			final int raw = TP1Frame.offset(f);
+			if (!TP1Frame.isData(f, length, raw))
+				return;
+			sources[pane].offer(TP1Frame.source(f, raw));
+			final int dst = TP1Frame.destination(f, raw);
+			destinations[pane].offer(TP1Frame.isGroupDestination(f, raw) ? dst | groupFlag : dst);
+		}
+
+		/**
+		 * Advances the window if the current pane ended, and returns the report over the window.
+		 * <p>
+		 *
+		 * @param now current time obtained by {@link System#nanoTime()}
+		 * @param force <code>true</code> to report even if the current pane has not ended
+		 * @return the report, or <code>null</code> if the current pane has not ended
+		 */
+		String summary(final long now, final boolean force)
+		{
+			if (now - paneStart < paneLength && !force)
+				return null;
+			mergedSources.clear();
+			mergedDestinations.clear();
+			for (int i = 0; i < panes; i++) {
+				mergedSources.merge(sources[i]);
+				mergedDestinations.merge(destinations[i]);
+			}
+			final StringBuffer sb = new StringBuffer();
+			sb.append("top talkers of last ").append(paneLength * panes / 1000000000L)
+					.append(" s (count/max. error)");
+			append(sb, "  sources:", mergedSources);
+			append(sb, "  destinations:", mergedDestinations);
+
+			// advance to the next pane, clearing panes we skipped without traffic
+			for (int i = 0; i < panes && now - paneStart >= paneLength; i++) {
+				pane = (pane + 1) % panes;
+				sources[pane].clear();
+				destinations[pane].clear();
+				paneStart += paneLength;
+			}
+			if (now - paneStart >= paneLength)
+				paneStart = now;
+			return sb.toString();
+		}
+
+		private void append(final StringBuffer sb, final String title, final SpaceSaving s)
+		{
+			sb.append(sep).append(title);
+			// merge keeps the entries sorted by count, highest first
+			for (int i = 0; i < Math.min(top, s.size); i++) {
+				final int key = s.keys[i];
+				sb.append(' ').append((key & groupFlag) != 0 ? new GroupAddress(key & 0xffff)
+						.toString() : new IndividualAddress(key).toString());
+				sb.append('=').append(s.counts[i]).append('/').append(s.errors[i]);
+			}
+		}
+	}
+
+	/**
+	 * Correlates requests with their responses and collects response latencies.
+	 * <p>
+	 * Correlated are a GroupValueRead with the next GroupValueResponse to the same group address,
+	 * and a point-to-point management request (e.g., MemoryRead, PropertyValueRead) with the
+	 * matching response service sent back from the addressed device. Latencies are collected in
+	 * log2 histograms of milliseconds, in total and per group address or responding device.<br>
+	 * All tables are of fixed size: pending group reads are indexed by group address, pending
+	 * management requests are kept in a small table searched linearly (management traffic is
+	 * rare), and the number of addresses with their own histogram per interval is limited, further
+	 * addresses are counted as "other". A request without response within the response timeout is
+	 * counted as timed out; if the pending table is full, its oldest request is evicted.
+	 */
+	private static final class Correlator
+	{
+		// max. time between request and response
+		private static final long timeout = 3000 * 1000000L;
+		private static final int buckets = 16;
+		private static final int maxPending = 256;
+		private static final int maxAddresses = 1024;
+		private static final int topCount = 10;
+		private static final int groupFlag = 0x10000;
+
+		private static final int GROUP_READ = 0x000;
+		private static final int GROUP_RESPONSE = 0x040;
+		// management request services and the corresponding response service
+		private static final int[] requests = { 0x180, 0x200, 0x2c0, 0x2c5, 0x300, 0x3c7, 0x3c8,
+			0x3d1, 0x3d3, 0x3d5, 0x3d7, 0x3d8, 0x3dc };
+		private static final int[] responses = { 0x1c0, 0x240, 0x2c1, 0x2c6, 0x340, 0x3c9, 0x3c9,
+			0x3d2, 0x3d4, 0x3d6, 0x3d6, 0x3d9, 0x3dd };
+
+		// pending group reads by group address
+		private final boolean[] groupPending = new boolean[0x10000];
+		private final long[] groupTimes = new long[0x10000];
+
+		// pending management requests
+		private final int[] pendingKeys = new int[maxPending];
+		private final int[] pendingServices = new int[maxPending];
+		private final long[] pendingTimes = new long[maxPending];
+		private final boolean[] pending = new boolean[maxPending];
+
+		// histogram slot + 1 by address, group addresses are flagged; slot 0 is "other"
+		private final short[] slots = new short[0x20000];
+		private final int[] addresses = new int[maxAddresses];
+		private final long[][] histograms = new long[maxAddresses][buckets];
+		private final long[] counts = new long[maxAddresses];
+		private final long[] sums = new long[maxAddresses];
+		private final long[] max = new long[maxAddresses];
+		private int used = 1;
+
+		private final long[] groupLatencies = new long[buckets];
+		private final long[] mgmtLatencies = new long[buckets];
+		private final long interval;
+		private long start;
+		private long groupAnswered;
+		private long groupTimeouts;
+		private long groupUnsolicited;
+		private long mgmtAnswered;
+		private long mgmtTimeouts;
+		private long mgmtEvicted;
+
+		/**
+		 * @param interval summary interval in nanoseconds
+		 */
+		Correlator(final long interval)
+		{
+			this.interval = interval;
+			start = System.nanoTime();
+		}
+
+		void add(final byte[] f, final int length, final long timestamp)
+		{
+			final int raw = TP1Frame.offset(f);
+			if (!TP1Frame.isData(f, length, raw))
+				return;
+			final int service = TP1Frame.service(f, length, raw);
+			if (service == -1)
+				return;
+			final int src = TP1Frame.source(f, raw);
+			final int dst = TP1Frame.destination(f, raw);
+			if (TP1Frame.isGroupDestination(f, raw))
+				addGroup(service, dst, timestamp, TP1Frame.isRepeated(f, raw));
+			else
+				addManagement(service, src, dst, timestamp);
+		}
+
+		/**
+		 * Returns the summary of the current interval and starts a new interval, if the interval
+		 * has elapsed.
+		 * <p>
+		 *
+		 * @param now current time obtained by {@link System#nanoTime()}
+		 * @param force <code>true</code> to end the interval even if it has not elapsed yet
+		 * @return the summary, or <code>null</code> if the interval has not elapsed
+		 */
+		String summary(final long now, final boolean force)
+		{
+			final long elapsed = now - start;
+			if (elapsed < interval && !force || elapsed <= 0)
+				return null;
+			expire(now);
+			final StringBuffer sb = new StringBuffer();
+			sb.append("response times of last ").append(elapsed / 1000000000L).append(" s: ");
+			sb.append("group reads ").append(groupAnswered).append(" answered, ")
+					.append(groupTimeouts).append(" timed out, ").append(groupUnsolicited)
+					.append(" unsolicited responses; management ").append(mgmtAnswered)
+					.append(" answered, ").append(mgmtTimeouts).append(" timed out, ")
+					.append(mgmtEvicted).append(" evicted");
+			appendHistogram(sb.append(sep).append("  group [ms]:"), groupLatencies);
+			appendHistogram(sb.append(sep).append("  management [ms]:"), mgmtLatencies);
+			appendSlowest(sb);
+
+			start = now;
+			groupAnswered = groupTimeouts = groupUnsolicited = 0;
+			mgmtAnswered = mgmtTimeouts = mgmtEvicted = 0;
+			Arrays.fill(groupLatencies, 0);
+			Arrays.fill(mgmtLatencies, 0);
+			for (int i = 0; i < used; i++) {
+				slots[addresses[i]] = 0;
+				Arrays.fill(histograms[i], 0);
+				counts[i] = sums[i] = max[i] = 0;
+			}
+			used = 1;
+			return sb.toString();
+		}
+
+		private void addGroup(final int service, final int group, final long timestamp,
+			final boolean repeated)
+		{
+			if (service == GROUP_READ) {
+				// a repeated or another read keeps the time of the first pending read
+				if (!groupPending[group] || timestamp - groupTimes[group] > timeout) {
+					if (groupPending[group])
+						groupTimeouts++;
+					groupPending[group] = true;
+					groupTimes[group] = timestamp;
+				}
+			}
+			else if (service == GROUP_RESPONSE && !repeated) {
+				final long latency = timestamp - groupTimes[group];
+				if (!groupPending[group])
+					groupUnsolicited++;
+				else if (latency > timeout) {
+					groupTimeouts++;
+					groupUnsolicited++;
+				}
+				else {
+					groupAnswered++;
+					record(group | groupFlag, latency, groupLatencies);
+				}
+				groupPending[group] = false;
+			}
+		}
+
+		private void addManagement(final int service, final int src, final int dst,
+			final long timestamp)
+		{
+			for (int i = 0; i < requests.length; i++)
+				if (service == requests[i]) {
+					request(src << 16 | dst, responses[i], timestamp);
+					return;
+				}
+			for (int i = 0; i < maxPending; i++)
+				if (pending[i] && pendingKeys[i] == (dst << 16 | src)
+						&& pendingServices[i] == service) {
+					pending[i] = false;
+					final long latency = timestamp - pendingTimes[i];
+					if (latency > timeout)
+						mgmtTimeouts++;
+					else {
+						mgmtAnswered++;
+						record(src, latency, mgmtLatencies);
+					}
+					return;
+				}
+		}
+
+		private void request(final int key, final int response, final long timestamp)
+		{
+			int free = -1;
+			int oldest = 0;
+			for (int i = 0; i < maxPending; i++) {
+				if (pending[i] && timestamp - pendingTimes[i] > timeout) {
+					pending[i] = false;
+					mgmtTimeouts++;
+				}
+				if (!pending[i]) {
+					if (free == -1)
+						free = i;
+				}
+				// a repeated request keeps the time of the first one
+				else if (pendingKeys[i] == key && pendingServices[i] == response)
+					return;
+				else if (pendingTimes[i] - pendingTimes[oldest] < 0)
+					oldest = i;
+			}
+			if (free == -1) {
+				free = oldest;
+				mgmtEvicted++;
+			}
+			pending[free] = true;
+			pendingKeys[free] = key;
+			pendingServices[free] = response;
+			pendingTimes[free] = timestamp;
+		}
+
+		private void record(final int address, final long latency, final long[] total)
+		{
+			final long ms = latency / 1000000;
+			final int bucket = Math.min(buckets - 1, 64 - Long.numberOfLeadingZeros(ms));
+			total[bucket]++;
+			int slot = slots[address] - 1;
+			if (slot < 0) {
+				slot = used < maxAddresses ? used++ : 0;
+				if (slot != 0) {
+					slots[address] = (short) (slot + 1);
+					addresses[slot] = address;
+				}
+			}
+			histograms[slot][bucket]++;
+			counts[slot]++;
+			sums[slot] += ms;
+			max[slot] = Math.max(max[slot], ms);
+		}
+
+		// counts and clears pending requests without response
+		private void expire(final long now)
+		{
+			for (int i = 0; i < groupPending.length; i++)
+				if (groupPending[i] && now - groupTimes[i] > timeout) {
+					groupPending[i] = false;
+					groupTimeouts++;
+				}
+			for (int i = 0; i < maxPending; i++)
+				if (pending[i] && now - pendingTimes[i] > timeout) {
+					pending[i] = false;
+					mgmtTimeouts++;
+				}
+		}
+
+		private static void appendHistogram(final StringBuffer sb, final long[] histogram)
+		{
+			for (int i = 0; i < buckets; i++)
+				if (histogram[i] > 0)
+					sb.append(' ').append(i == 0 ? "<1" : "<" + (1 << i)).append('=')
+							.append(histogram[i]);
+		}
+
+		// addresses with the highest average response time, with 90th percentile bucket
+		private void appendSlowest(final StringBuffer sb)
+		{
+			sb.append(sep).append("  slowest [avg/p90/max ms]:");
+			final boolean[] shown = new boolean[used];
+			for (int n = 0; n < topCount; n++) {
+				int slowest = -1;
+				for (int i = 1; i < used; i++)
+					if (!shown[i] && (slowest == -1 || sums[i] * counts[slowest]
+							> sums[slowest] * counts[i]))
+						slowest = i;
+				if (slowest == -1)
+					break;
+				shown[slowest] = true;
+				final int a = addresses[slowest];
+				sb.append(' ').append((a & groupFlag) != 0 ? new GroupAddress(a & 0xffff)
+						.toString() : new IndividualAddress(a).toString());
+				sb.append('=').append(sums[slowest] / counts[slowest]).append('/')
+						.append(percentile(histograms[slowest], counts[slowest], 90)).append('/')
+						.append(max[slowest]).append(" (").append(counts[slowest]).append(')');
+			}
+			if (counts[0] > 0)
+				sb.append(" other=").append(sums[0] / counts[0]).append('/')
+						.append(percentile(histograms[0], counts[0], 90)).append('/')
+						.append(max[0]).append(" (").append(counts[0]).append(')');
+		}
+
+		// upper bound of the bucket containing the percentile
+		private static String percentile(final long[] histogram, final long count, final int p)
+		{
+			long sum = 0;
+			for (int i = 0; i < buckets; i++) {
+				sum += histogram[i];
+				if (sum * 100 >= count * p)
+					return i == 0 ? "<1" : "<" + (1 << i);
+			}
+			return "?";
+		}
+	}
+
+	/**
+	 * Measures the time a frame spends in each processing stage of the monitor, and the depth of
+	 * the receive buffers.
+	 * <p>
+	 * The stages of a frame are:
+	 * <ul>
+	 * <li>queue: from the arrival at the link listener until the consumer takes the frame,
+	 * including the time held back by the frame merger</li>
+	 * <li>decode: filtering, statistics, and decoding of the cEMI frame and TPDU</li>
+	 * <li>output: writing to capture, structured output, subscribers, and the log writer</li>
+	 * <li>total: from the arrival until the frame is processed</li>
+	 * </ul>
+	 * Stage times are counted in histograms with power of two buckets in microseconds. All
+	 * counters are preallocated, and only the consumer thread uses this class, so recording a
+	 * frame neither allocates nor synchronizes.
+	 */
+	private static final class StageProfile
+	{
+		static final int QUEUE = 0;
+		static final int DECODE = 1;
+		static final int OUTPUT = 2;
+		static final int TOTAL = 3;
+
+		private static final String[] names = { "queue", "decode", "output", "total" };
+		private static final int buckets = 32;
+
+		private final long[][] histograms = new long[names.length][buckets];
+		private final long[] sums = new long[names.length];
+		private final long[] max = new long[names.length];
+		private final long[] counts = new long[names.length];
+		// receive buffer depth seen by the consumer, per line
+		private final long[] depthSums;
+		private final int[] depthMax;
+		private final long[] depthCounts;
+
+		private final long interval;
+		private long start;
+		// time the current frame finished decoding, see decoded()
+		private long decoded;
+
+		/**
+		 * @param lines number of monitored lines
+		 * @param interval summary interval in nanoseconds
+		 */
+		StageProfile(final int lines, final long interval)
+		{
+			depthSums = new long[lines];
+			depthMax = new int[lines];
+			depthCounts = new long[lines];
+			this.interval = interval;
+			start = System.nanoTime();
+		}
+
+		/**
+		 * Records a frame taken by the consumer.
+		 * <p>
+		 *
+		 * @param line line identifier
+		 * @param depth number of frames in the receive buffer of the line, including this frame
+		 * @param arrival receive time of the frame
+		 * @param taken time the consumer took the frame
+		 */
+		void taken(final int line, final int depth, final long arrival, final long taken)
+		{
+			depthSums[line] += depth;
+			depthCounts[line]++;
+			if (depth > depthMax[line])
+				depthMax[line] = depth;
+			add(QUEUE, taken - arrival);
+		}
+
+		/**
+		 * Marks the end of decoding, if the frame is decoded for output after it was recorded.
+		 * <p>
+		 */
+		void decoded()
+		{
+			decoded = System.nanoTime();
+		}
+
+		/**
+		 * Records the stage times of a processed frame.
+		 * <p>
+		 * Analyzing a frame is counted as decoding, and recording it as output. If the frame was
+		 * dispatched for output afterwards, its decoding ends with the last call to
+		 * {@link #decoded()}; without that call, dispatching is counted as decoding.
+		 *
+		 * @param arrival receive time of the frame
+		 * @param taken time the consumer took the frame
+		 * @param analyzed time the analysis of the frame finished
+		 * @param recorded time the recording of the frame finished
+		 * @param done time the frame was processed
+		 */
+		void processed(final long arrival, final long taken, final long analyzed,
+			final long recorded, final long done)
+		{
+			final long d = decoded - recorded >= 0 ? decoded : done;
+			add(DECODE, analyzed - taken + d - recorded);
+			add(OUTPUT, recorded - analyzed + done - d);
+			add(TOTAL, done - arrival);
+		}
+
+		/**
+		 * Returns the summary of the current interval and starts a new interval, if the interval
+		 * has elapsed.
+		 * <p>
+		 *
+		 * @param now current time obtained by {@link System#nanoTime()}
+		 * @param force <code>true</code> to end the interval even if it has not elapsed yet
+		 * @return the summary, or <code>null</code> if the interval has not elapsed
+		 */
+		String summary(final long now, final boolean force)
+		{
+			final long elapsed = now - start;
+			if (elapsed < interval && !force || elapsed <= 0)
+				return null;
+			final StringBuffer sb = new StringBuffer();
+			sb.append("processing times of last ").append(elapsed / 1000000000L).append(" s: ")
+					.append(counts[TOTAL]).append(" frames [us avg/p50/p99/max]");
+			for (int i = 0; i < names.length; i++) {
+				sb.append(sep).append("  ").append(names[i]).append(' ');
+				if (counts[i] == 0) {
+					sb.append('-');
+					continue;
+				}
+				sb.append(sums[i] / counts[i]).append('/')
+						.append(percentile(histograms[i], counts[i], 50)).append('/')
+						.append(percentile(histograms[i], counts[i], 99)).append('/')
+						.append(max[i]).append(':');
+				for (int k = 0; k < buckets; k++)
+					if (histograms[i][k] > 0)
+						sb.append(' ').append(k == 0 ? "<1" : "<" + (1L << k)).append('=')
+								.append(histograms[i][k]);
+			}
+			sb.append(sep).append("  receive buffer depth [avg/max]:");
+			for (int i = 0; i < depthCounts.length; i++) {
+				sb.append(' ').append(depthCounts.length > 1 ? "line " + i + " " : "");
+				if (depthCounts[i] == 0)
+					sb.append('-');
+				else
+					sb.append(depthSums[i] / depthCounts[i]).append('/').append(depthMax[i]);
+			}
+
+			start = now;
+			for (int i = 0; i < names.length; i++) {
+				Arrays.fill(histograms[i], 0);
+				sums[i] = max[i] = counts[i] = 0;
+			}
+			Arrays.fill(depthSums, 0);
+			Arrays.fill(depthMax, 0);
+			Arrays.fill(depthCounts, 0);
+			return sb.toString();
+		}
+
+		private void add(final int stage, final long nanos)
+		{
+			final long us = Math.max(0, nanos / 1000);
+			final int bucket = Math.min(buckets - 1, 64 - Long.numberOfLeadingZeros(us));
+			histograms[stage][bucket]++;
+			sums[stage] += us;
+			counts[stage]++;
+			if (us > max[stage])
+				max[stage] = us;
+		}
+
+		// upper bound of the bucket containing the percentile
+		private static String percentile(final long[] histogram, final long count, final int p)
+		{
+			long sum = 0;
+			for (int i = 0; i < buckets; i++) {
+				sum += histogram[i];
+				if (sum * 100 >= count * p)
+					return i == 0 ? "<1" : "<" + (1L << i);
+			}
+			return "?";
+		}
+	}
+
+	/**
+	 * Reduces the output of the monitor while the consumer cannot keep up with the received
+	 * frames.
+	 * <p>
+	 * The policy applied to a line is chosen by the depth of the receive buffer of that line, up to
+	 * the configured max. policy:
+	 * <ul>
+	 * <li>COALESCE, at a quarter of the buffer capacity: a data frame identical to the last shown
+	 * data frame of the line (ignoring the repeat flag) is not shown, but counted; the count is
+	 * shown as one repetition record before the next different frame</li>
+	 * <li>SAMPLE, at half the buffer capacity: additionally, only one in <i>k</i> data frames of
+	 * a source address is shown</li>
+	 * <li>DROP, at three quarters of the buffer capacity: no data frame is shown</li>
+	 * </ul>
+	 * An acknowledgment frame is shown only if the preceding data frame of the line was shown.
+	 * Overload of a line starts with the first frame taken at a depth requiring a policy, and ends
+	 * once the buffer depth falls to an eighth of its capacity; in between, at least COALESCE
+	 * applies. All omitted frames are counted by policy, and by source address for the summary on
+	 * exit.<br>
+	 * Only the consumer thread uses this class, all state is preallocated.
+	 */
+	private static final class OverloadPolicy
+	{
+		static final int NONE = 0;
+		static final int COALESCE = 1;
+		static final int SAMPLE = 2;
+		static final int DROP = 3;
+
+		// index of omitted acknowledgments in the counters
+		private static final int ACK = NONE;
+		private static final String[] names = { "none", "coalesce", "sample", "drop" };
+		private static final int topCount = 10;
+
+		private final int maxPolicy;
+		private final int sampleRate;
+
+		// state by line
+		private final int[] policies;
+		private final int[] peakPolicies;
+		private final int[] peakDepths;
+		private final long[] started;
+		private final long[][] counts;
+		private final byte[][] last;
+		private final int[] lastLength;
+		private final boolean[] shown;
+		private final int[] repetitions;
+		private final long[] repeated;
+		private final int[] ended;
+
+		// frames omitted without repetition record in the overload that ended last
+		private long endedOmitted;
+
+		private final long[] totals = new long[names.length];
+		private final int[] sampleCounters = new int[0x10000];
+		private final long[] omitted = new long[0x10000];
+
+		/**
+		 * @param lines number of lines
+		 * @param maxPolicy most restrictive policy to apply
+		 * @param sampleRate show one in <code>sampleRate</code> frames of a source when sampling
+		 */
+		OverloadPolicy(final int lines, final int maxPolicy, final int sampleRate)
+		{
+			this.maxPolicy = maxPolicy;
+			this.sampleRate = sampleRate;
+			policies = new int[lines];
+			peakPolicies = new int[lines];
+			peakDepths = new int[lines];
+			started = new long[lines];
+			counts = new long[lines][names.length];
+			last = new byte[lines][FrameRing.maxFrameSize];
+			lastLength = new int[lines];
+			shown = new boolean[lines];
+			repetitions = new int[lines];
+			repeated = new long[lines];
+			ended = new int[lines];
+		}
+
+		/**
+		 * Updates the policy of a line using the current depth of its receive buffer.
+		 * <p>
+		 *
+		 * @param line line identifier
+		 * @param depth number of frames in the receive buffer
+		 * @param capacity capacity of the receive buffer
+		 * @param now current time obtained by {@link System#nanoTime()}
+		 * @return a message if overload of the line started, escalated or ended, <code>null</code>
+		 *         otherwise
+		 */
+		String update(final int line, final int depth, final int capacity, final long now)
+		{
+			final int policy = Math.min(maxPolicy, Math.min(DROP, depth * 4 / capacity));
+			final int current = policies[line];
+			if (current == NONE) {
+				if (policy == NONE)
+					return null;
+				policies[line] = policy;
+				peakPolicies[line] = policy;
+				peakDepths[line] = depth;
+				started[line] = now;
+				return "overload, " + depth + " of " + capacity + " frames queued, output "
+						+ describe(policy);
+			}
+			peakDepths[line] = Math.max(peakDepths[line], depth);
+			if (depth * 8 <= capacity) {
+				policies[line] = NONE;
+				final StringBuffer sb = new StringBuffer();
+				sb.append("overload ended after ").append(millis(now - started[line]))
+						.append(" ms, max. ").append(peakDepths[line]).append(" frames queued, ");
+				append(sb, counts[line]);
+				endedOmitted = counts[line][SAMPLE] + counts[line][DROP] + counts[line][ACK];
+				Arrays.fill(counts[line], 0);
+				return sb.toString();
+			}
+			policies[line] = Math.max(COALESCE, policy);
+			if (policy <= peakPolicies[line])
+				return null;
+			peakPolicies[line] = policy;
+			return "overload escalated, " + depth + " of " + capacity + " frames queued, output "
+					+ describe(policy);
+		}
+
+		/**
+		 * Returns whether a frame taken from the receive buffer of a line is shown.
+		 * <p>
+		 * Call {@link #update(int, int, int, long)} before.
+		 *
+		 * @param line line identifier
+		 * @param f buffer containing the cEMI frame
+		 * @param length length of the cEMI frame
+		 * @param timestamp receive time of the frame
+		 * @return <code>true</code> to show the frame, <code>false</code> if omitted
+		 */
+		boolean admit(final int line, final byte[] f, final int length, final long timestamp)
+		{
+			final int raw = TP1Frame.offset(f);
+			if (length - raw == 1) {
+				if (!shown[line])
+					omit(line, ACK, -1);
+				return shown[line];
+			}
+			final int policy = policies[line];
+			final boolean data = TP1Frame.isData(f, length, raw);
+			if (data && policy >= COALESCE && isLast(line, f, raw, length)) {
+				repetitions[line]++;
+				repeated[line] = timestamp;
+				omit(line, COALESCE, TP1Frame.source(f, raw));
+				return shown[line] = false;
+			}
+			ended[line] = repetitions[line];
+			repetitions[line] = 0;
+			if (policy >= DROP) {
+				omit(line, DROP, data ? TP1Frame.source(f, raw) : -1);
+				return shown[line] = false;
+			}
+			if (data && policy >= SAMPLE) {
+				final int src = TP1Frame.source(f, raw);
+				if (sampleCounters[src]++ % sampleRate != 0) {
+					omit(line, SAMPLE, src);
+					return shown[line] = false;
+				}
+			}
+			// only a shown frame is coalesced with its repetitions
+			lastLength[line] = length - raw;
+			System.arraycopy(f, raw, last[line], 0, length - raw);
+			return shown[line] = true;
+		}
+
+		/**
+		 * Returns the number of repetitions of the last shown data frame, if the repetitions ended
+		 * with the frame last admitted.
+		 * <p>
+		 *
+		 * @param line line identifier
+		 * @return number of repetitions, 0 if none ended
+		 */
+		int endedRepetitions(final int line)
+		{
+			final int n = ended[line];
+			ended[line] = 0;
+			return n;
+		}
+
+		/**
+		 * Returns the number of repetitions of the last shown data frame not yet shown, and ends
+		 * the repetitions.
+		 * <p>
+		 *
+		 * @param line line identifier
+		 * @return number of repetitions, 0 if none
+		 */
+		int flush(final int line)
+		{
+			final int n = repetitions[line];
+			repetitions[line] = 0;
+			lastLength[line] = 0;
+			return n;
+		}
+
+		/**
+		 * Returns the number of frames omitted during the overload which ended with the last
+		 * {@link #update(int, int, int, long)}, excluding repetitions.
+		 * <p>
+		 *
+		 * @return number of frames, 0 if none
+		 */
+		long endedOmitted()
+		{
+			final long n = endedOmitted;
+			endedOmitted = 0;
+			return n;
+		}
+
+		// receive time of the last repetition
+		long repeated(final int line)
+		{
+			return repeated[line];
+		}
+
+		/**
+		 * Returns the summary of all frames omitted, or <code>null</code> if no frame was
+		 * omitted.
+		 * <p>
+		 */
+		String summary()
+		{
+			long sum = 0;
+			for (int i = 0; i < totals.length; i++)
+				sum += totals[i];
+			if (sum == 0)
+				return null;
+			final StringBuffer sb = new StringBuffer("overload: ");
+			append(sb, totals);
+			sb.append(sep).append("  omitted by source:");
+			final boolean[] listed = new boolean[omitted.length];
+			long listedSum = 0;
+			for (int n = 0; n < topCount; n++) {
+				int top = -1;
+				for (int i = 0; i < omitted.length; i++)
+					if (!listed[i] && omitted[i] > 0 && (top == -1 || omitted[i] > omitted[top]))
+						top = i;
+				if (top == -1)
+					break;
+				listed[top] = true;
+				listedSum += omitted[top];
+				sb.append(' ').append(new IndividualAddress(top)).append('=').append(omitted[top]);
+			}
+			final long others = sum - totals[ACK] - listedSum;
+			if (others > 0)
+				sb.append(" other=").append(others);
+			return sb.toString();
+		}
+
+		private void omit(final int line, final int policy, final int src)
+		{
+			counts[line][policy]++;
+			totals[policy]++;
+			if (src != -1)
+				omitted[src]++;
+		}
+
+		private boolean isLast(final int line, final byte[] f, final int raw, final int length)
+		{
+			final byte[] l = last[line];
+			final int n = length - raw;
+			if (n != lastLength[line] || ((f[raw] ^ l[0]) & ~0x20) != 0)
+				return false;
+			// the check octet differs if only the repeat flag differs
+			final int end = f[raw] == l[0] ? n : n - 1;
+			for (int i = 1; i < end; i++)
+				if (f[raw + i] != l[i])
+					return false;
+			return true;
+		}
+
+		private String describe(final int policy)
+		{
+			if (policy == SAMPLE)
+				return "sampled 1 in " + sampleRate + " by source";
+			return policy == DROP ? "dropped" : "coalesced";
+		}
+
+		private static void append(final StringBuffer sb, final long[] counts)
+		{
+			sb.append("omitted ").append(counts[COALESCE]).append(" repetitions, ")
+					.append(counts[SAMPLE]).append(" sampled out, ").append(counts[DROP])
+					.append(" dropped, ").append(counts[ACK]).append(" acknowledgments");
+		}
+	}
+
+	/**
+	 * Detects anomalies of the traffic on a line, using rates over a sliding time window.
+	 * <p>
+	 * The window is divided into slots of equal length, every slot counts the frames received
+	 * during its time. A slot is reused for a later time once it falls out of the window, and the
+	 * window sum is updated by the counts of the reused slot. Frames are counted for the whole line
+	 * and by source address; the slots of a source address are only updated when the source sends.
+	 * Hence, adding and evaluating a frame takes constant time, independent of the window length.
+	 * <p>
+	 * Detected anomalies, each with a configurable threshold:
+	 * <ul>
+	 * <li>storm: the telegram rate of the line exceeds the threshold in telegrams/s</li>
+	 * <li>sender: the telegram rate of a source exceeds the threshold in telegrams/s</li>
+	 * <li>repeat: the percentage of repeated telegrams of the line exceeds the threshold</li>
+	 * <li>nak: the percentage of negative acknowledgments of the line exceeds the threshold</li>
+	 * <li>stuck: a source repeats more telegrams in the window than the threshold</li>
+	 * <li>silence: no telegram was received on a line with traffic for the threshold in seconds</li>
+	 * </ul>
+	 * Line anomalies are reported when they start and end, anomalies of a source are reported at
+	 * most once per window. Only the consumer thread uses this class.
+	 */
+	private final class AnomalyDetector
+	{
+		static final int WINDOW = 0;
+		static final int STORM = 1;
+		static final int SENDER = 2;
+		static final int REPEAT = 3;
+		static final int NAK = 4;
+		static final int STUCK = 5;
+		static final int SILENCE = 6;
+
+		// max. number of slots of a window
+		private static final int maxSlots = 10;
+		// min. telegrams in the window to evaluate repeat and NAK percentages
+		private static final int minTelegrams = 20;
+
+		private final int line;
+		private final int[] limits;
+		private final int slots;
+		private final long slotLength;
+		private final long origin;
+
+		// line slots
+		private final int[] telegrams;
+		private final int[] repeats;
+		private final int[] naks;
+		private long telegramSum;
+		private long repeatSum;
+		private long nakSum;
+		private int current;
+
+		// source slots, maxSlots slots per source address
+		private final short[] sourceTelegrams = new short[0x10000 * maxSlots];
+		private final short[] sourceRepeats = new short[0x10000 * maxSlots];
+		private final int[] sourceTelegramSums = new int[0x10000];
+		private final int[] sourceRepeatSums = new int[0x10000];
+		private final int[] sourceCurrent = new int[0x10000];
+		// slot until which an anomaly of a source is not reported again
+		private final int[] senderReported = new int[0x10000];
+		private final int[] stuckReported = new int[0x10000];
+
+		private boolean storm;
+		private boolean repeating;
+		private boolean nakking;
+		private boolean silent;
+		private long last;
+
+		/**
+		 * @param line line identifier
+		 * @param limits window length in seconds and anomaly thresholds, see
+		 *        {@link NetworkMonitor#getAnomalyThresholds(String)}
+		 */
+		AnomalyDetector(final int line, final int[] limits)
+		{
+			this.line = line;
+			this.limits = limits;
+			slots = Math.min(maxSlots, limits[WINDOW]);
+			slotLength = limits[WINDOW] * 1000000000L / slots;
+			telegrams = new int[slots];
+			repeats = new int[slots];
+			naks = new int[slots];
+			origin = System.nanoTime();
+		}
+
+		void add(final byte[] f, final int length, final long timestamp)
+		{
+			final int slot = slot(timestamp);
+			advance(slot);
+			final int raw = TP1Frame.offset(f);
+			if (length - raw == 1) {
+				if ((f[raw] & 0xff) == 0x0c) {
+					naks[current % slots]++;
+					nakSum++;
+				}
+				evaluate(timestamp);
+				return;
+			}
+			if (silent) {
+				silent = false;
+				normal("telegrams resumed after " + (timestamp - last) / 1000000000L + " s",
+						timestamp);
+			}
+			last = timestamp;
+			telegrams[current % slots]++;
+			telegramSum++;
+			if (!TP1Frame.isData(f, length, raw)) {
+				evaluate(timestamp);
+				return;
+			}
+			final boolean repeated = TP1Frame.isRepeated(f, raw);
+			if (repeated) {
+				repeats[current % slots]++;
+				repeatSum++;
+			}
+
+			final int src = TP1Frame.source(f, raw);
+			advance(src, slot);
+			final int i = src * maxSlots + slot % slots;
+			sourceTelegrams[i]++;
+			sourceTelegramSums[src]++;
+			if (sourceTelegramSums[src] > limits[SENDER] * limits[WINDOW]
+					&& slot >= senderReported[src]) {
+				senderReported[src] = slot + slots;
+				alert(src, new IndividualAddress(src) + " sends " + rate(sourceTelegramSums[src])
+						+ " telegrams/s in last " + limits[WINDOW] + " s (limit "
+						+ limits[SENDER] + ")", timestamp);
+			}
+			if (repeated) {
+				sourceRepeats[i]++;
+				sourceRepeatSums[src]++;
+				if (sourceRepeatSums[src] > limits[STUCK] && slot >= stuckReported[src]) {
+					stuckReported[src] = slot + slots;
+					alert(src, new IndividualAddress(src) + " repeated " + sourceRepeatSums[src]
+							+ " telegrams in last " + limits[WINDOW] + " s (limit "
+							+ limits[STUCK] + ")", timestamp);
+				}
+			}
+			evaluate(timestamp);
+		}
+
+		/**
+		 * Advances the window to the current time, and checks for silence of the line.
+		 * <p>
+		 *
+		 * @param now current time obtained by {@link System#nanoTime()}
+		 */
+		void tick(final long now)
+		{
+			advance(slot(now));
+			evaluate(now);
+			if (!silent && last != 0 && now - last >= limits[SILENCE] * 1000000000L) {
+				silent = true;
+				alert(-1, "no telegrams for " + limits[SILENCE] + " s", now);
+			}
+		}
+
+		private void evaluate(final long timestamp)
+		{
+			final boolean s = telegramSum > limits[STORM] * limits[WINDOW];
+			if (s != storm) {
+				storm = s;
+				if (s)
+					alert(-1, "telegram storm, " + rate(telegramSum) + " telegrams/s in last "
+							+ limits[WINDOW] + " s (limit " + limits[STORM] + ")", timestamp);
+				else
+					normal("telegram storm ended", timestamp);
+			}
+			final boolean evaluate = telegramSum >= minTelegrams;
+			final boolean r = evaluate && repeatSum * 100 > limits[REPEAT] * telegramSum;
+			if (r != repeating) {
+				repeating = r;
+				if (r)
+					alert(-1, "repeat rate " + repeatSum * 100 / telegramSum + " % of "
+							+ telegramSum + " telegrams in last " + limits[WINDOW] + " s (limit "
+							+ limits[REPEAT] + " %)", timestamp);
+				else
+					normal("repeat rate normal", timestamp);
+			}
+			final boolean n = evaluate && nakSum * 100 > limits[NAK] * telegramSum;
+			if (n != nakking) {
+				nakking = n;
+				if (n)
+					alert(-1, "NAK rate " + nakSum * 100 / telegramSum + " % of " + telegramSum
+							+ " telegrams in last " + limits[WINDOW] + " s (limit " + limits[NAK]
+							+ " %)", timestamp);
+				else
+					normal("NAK rate normal", timestamp);
+			}
+		}
+
+		// reuses the line slots between the current and the supplied slot
+		private void advance(final int slot)
+		{
+			for (int i = current + 1; i <= slot && i <= current + slots; i++) {
+				final int k = i % slots;
+				telegramSum -= telegrams[k];
+				repeatSum -= repeats[k];
+				nakSum -= naks[k];
+				telegrams[k] = repeats[k] = naks[k] = 0;
+			}
+			if (slot > current)
+				current = slot;
+		}
+
+		// reuses the slots of a source between its last and the supplied slot
+		private void advance(final int src, final int slot)
+		{
+			final int c = sourceCurrent[src];
+			for (int i = c + 1; i <= slot && i <= c + slots; i++) {
+				final int k = src * maxSlots + i % slots;
+				sourceTelegramSums[src] -= sourceTelegrams[k];
+				sourceRepeatSums[src] -= sourceRepeats[k];
+				sourceTelegrams[k] = sourceRepeats[k] = 0;
+			}
+			if (slot > c)
+				sourceCurrent[src] = slot;
+		}
+
+		private int slot(final long timestamp)
+		{
+			return (int) ((timestamp - origin) / slotLength);
+		}
+
+		private String rate(final long n)
+		{
+			return String.valueOf(Math.round(n * 10.0 / limits[WINDOW]) / 10.0);
+		}
+
+		private void alert(final int source, final String message, final long timestamp)
+		{
+			anomaly(line, source, message, timestamp, true);
+		}
+
+		private void normal(final String message, final long timestamp)
+		{
+			anomaly(line, -1, message, timestamp, false);
+		}
+	}
+
+	/**
+	 * Keeps the most recent frames in memory and dumps them to a capture file when a trigger
+	 * frame is received.
+	 * <p>
+	 * Until the trigger matches, a frame is only copied into a history ring holding the
+	 * pre-trigger window, which is either a number of frames or a time span. On a frame matching
+	 * the trigger, a new capture file is created containing the pre-trigger window, the trigger
+	 * frame, and the frames of the post-trigger window. A trigger within the post-trigger window
+	 * extends the window. A file is named after the capture file, with the trigger time inserted
+	 * before the file extension.<br>
+	 * Only the consumer thread uses this class.
+	 */
+	private static final class TriggerCapture
+	{
+		// upper bound of TP1 frames and acknowledgments per second, to size a time window
+		private static final int maxFrameRate = 100;
+		private static final int maxHistory = 1 << 20;
+
+		private final FrameFilter trigger;
+		private final String file;
+		private final int medium;
+		private final long timeBase;
+		private final long[] pre;
+		private final long[] post;
+		private final SimpleDateFormat suffix = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+
+		// history ring of the pre-trigger window
+		private final byte[][] frames;
+		private final int[] lengths;
+		private final int[] types;
+		private final int[] lines;
+		private final long[] timestamps;
+		private final int mask;
+		private long head;
+
+		private CaptureWriter writer;
+		private String name;
+		private long postFrames;
+		private long postEnd;
+		private int triggers;
+
+		/**
+		 * @param trigger trigger filter
+		 * @param file capture file name used to derive the names of the trigger files
+		 * @param medium KNX medium
+		 * @param timeBase offset to convert a receive time to nanoseconds since the epoch
+		 * @param pre pre-trigger window, see {@link #window(String)}
+		 * @param post post-trigger window, see {@link #window(String)}
+		 * @param lineCount number of monitored lines
+		 */
+		TriggerCapture(final FrameFilter trigger, final String file, final int medium,
+			final long timeBase, final long[] pre, final long[] post, final int lineCount)
+		{
+			this.trigger = trigger;
+			this.file = file;
+			this.medium = medium;
+			this.timeBase = timeBase;
+			this.pre = pre;
+			this.post = post;
+			final long capacity = pre[0] > 0 ? pre[0] : pre[1] / 1000000000L * maxFrameRate
+					* lineCount;
+			int size = 1;
+			while (size < Math.min(capacity, maxHistory))
+				size <<= 1;
+			frames = new byte[size][];
+			lengths = new int[size];
+			types = new int[size];
+			lines = new int[size];
+			timestamps = new long[size];
+			mask = size - 1;
+		}
+
+		/**
+		 * Parses a trigger window, either a number of frames or a number of seconds followed by
+		 * 's'.
+		 * <p>
+		 *
+		 * @param window the window, e.g., "1000" or "30s"
+		 * @return array with number of frames and time span in nanoseconds, one of them is 0
+		 */
+		static long[] window(final String window)
+		{
+			final boolean time = window.endsWith("s");
+			final long n = Long.parseLong(time ? window.substring(0, window.length() - 1)
+					: window);
+			if (n <= 0)
+				throw new KNXIllegalArgumentException("trigger window " + window
+						+ " has to be greater than 0");
+			return time ? new long[] { 0, n * 1000000000L } : new long[] { n, 0 };
+		}
+
+		/**
+		 * Adds a frame or gap marker taken from the receive buffer.
+		 * <p>
+		 *
+		 * @param type entry type, a capture record type
+		 * @param line line identifier
+		 * @param data buffer containing the cEMI frame or gap duration
+		 * @param length length of the data in <code>data</code>
+		 * @param timestamp receive time obtained by {@link System#nanoTime()}
+		 * @throws IOException on error writing a trigger file
+		 */
+		void add(final int type, final int line, final byte[] data, final int length,
+			final long timestamp) throws IOException
+		{
+			tick(timestamp);
+			final boolean match = type == CaptureFormat.FRAME && trigger.accept(data, length);
+			if (writer == null && match) {
+				open(timestamp);
+				dump(timestamp);
+			}
+			if (writer != null) {
+				if (match)
+					extend(timestamp);
+				writer.write(type, line, timestamp + timeBase, data, 0, length);
+				postFrames--;
+				if (post[0] > 0 && postFrames < 0)
+					close();
+			}
+			store(type, line, data, length, timestamp);
+		}
+
+		/**
+		 * Closes the current trigger file if the post-trigger time window has elapsed.
+		 * <p>
+		 *
+		 * @param now current time obtained by {@link System#nanoTime()}
+		 * @throws IOException on error closing the trigger file
+		 */
+		void tick(final long now) throws IOException
+		{
+			if (writer != null && post[1] > 0 && now - postEnd >= 0)
+				close();
+		}
+
+		void close() throws IOException
+		{
+			final CaptureWriter w = writer;
+			writer = null;
+			if (w == null)
+				return;
+			final long size = w.size();
+			w.close();
+			out.info("trigger capture " + name + ": " + w.records + " records, " + size
+					+ " bytes");
+		}
+
+		private void open(final long timestamp) throws IOException
+		{
+			final int dot = file.lastIndexOf('.');
+			final String time = suffix.format(new Date((timestamp + timeBase) / 1000000));
+			name = dot > file.lastIndexOf(File.separatorChar) ? file.substring(0, dot) + "-"
+					+ time + file.substring(dot) : file + "-" + time;
+			writer = new CaptureWriter(name, medium);
+			triggers++;
+			out.info("trigger " + triggers + " matched, capture to " + name);
+		}
+
+		// writes the history of the pre-trigger window
+		private void dump(final long timestamp) throws IOException
+		{
+			final long size = Math.min(head, mask + 1);
+			long first = head - (pre[0] > 0 ? Math.min(pre[0], size) : size);
+			if (pre[1] > 0)
+				while (first < head && timestamp - timestamps[(int) first & mask] > pre[1])
+					first++;
+			for (long i = first; i < head; i++) {
+				final int slot = (int) i & mask;
+				writer.write(types[slot], lines[slot], timestamps[slot] + timeBase, frames[slot],
+						0, lengths[slot]);
+			}
+		}
+
+		// the post-trigger window starts at the trigger frame
+		private void extend(final long timestamp)
+		{
+			postFrames = post[0];
+			postEnd = timestamp + post[1];
+		}
+
+		private void store(final int type, final int line, final byte[] data, final int length,
+			final long timestamp)
+		{
+			final int slot = (int) head & mask;
+			// slot buffers are only reallocated for a larger frame
+			if (frames[slot] == null || frames[slot].length < length)
+				frames[slot] = new byte[Math.max(length, 32)];
+			System.arraycopy(data, 0, frames[slot], 0, length);
+			lengths[slot] = length;
+			types[slot] = type;
+			lines[slot] = line;
+			timestamps[slot] = timestamp;
+			head++;
+		}
+	}
+
+	/**
+	 * Appends records to a binary capture file using memory-mapped file segments.
+	 * <p>
+	 * The file is mapped in segments of fixed size; a new segment is mapped (and thereby
+	 * preallocated) only when the current one is full, so appending a record is a plain memory
+	 * copy. On close, the file is truncated to the size actually written, if the platform allows
+	 * that for a mapped file.
+	 * <p>
+	 * The capture file format is described in {@link CaptureFormat}.
+	 * <p>
+	 * Along with the capture file, a sparse side index is written, see {@link CaptureIndex}. If
+	 * the index cannot be written, capturing continues without index.
+	 */
+	private static final class CaptureWriter
+	{
+		private static final int segmentSize = 16 * 1024 * 1024;
+
+		private final RandomAccessFile file;
+		private final FileChannel ch;
+		private MappedByteBuffer buf;
+		private long segment;
+		private long records;
+		private CaptureIndex index;
+
+		CaptureWriter(final String name, final int medium) throws IOException
+		{
+			file = new RandomAccessFile(name, "rw");
+			file.setLength(0);
+			ch = file.getChannel();
+			map(0);
+			buf.putInt(CaptureFormat.magic).putShort((short) CaptureFormat.formatVersion)
+					.putShort((short) medium).putLong(System.currentTimeMillis());
+			try {
+				index = new CaptureIndex(name + ".idx", medium);
+			}
+			catch (final IOException e) {
+				out.warn("capture " + name + " without index: " + e.getMessage());
+			}
+		}
+
+		void write(final int type, final int line, final long timestamp, final byte[] data,
+			final int offset, final int length) throws IOException
+		{
+			if (buf.remaining() < CaptureFormat.recordHeaderSize + length)
+				map(size());
+			final long position = size();
+			buf.putShort((short) length).put((byte) type).put((byte) line).putLong(timestamp);
+			buf.put(data, offset, length);
+			records++;
+			if (index != null) {
+				try {
+					index.add(position, CaptureFormat.recordHeaderSize + length, type, timestamp,
+							data, offset, length);
+				}
+				catch (final IOException e) {
+					out.warn("capture index stopped: " + e.getMessage());
+					closeIndex();
+				}
+			}
+		}
+
+		long size()
+		{
+			return segment + buf.position();
+		}
+
+		void close() throws IOException
+		{
+			final long size = size();
+			buf.force();
+			buf = null;
+			try {
+				ch.truncate(size);
+			}
+			catch (final IOException e) {
+				// still mapped, the unused tail of the last segment stays zero-filled
+			}
+			file.close();
+			closeIndex();
+		}
+
+		private void closeIndex()
+		{
+			final CaptureIndex i = index;
+			index = null;
+			try {
+				if (i != null)
+					i.close();
+			}
+			catch (final IOException e) {
+				out.warn("closing capture index: " + e.getMessage());
+			}
+		}
+
+		private void map(final long position) throws IOException
+		{
+			if (buf != null)
+				buf.force();
+			buf = ch.map(FileChannel.MapMode.READ_WRITE, position, segmentSize);
+			segment = position;
+		}
+	}
+
+	/**
+	 * Writes the sparse side index of a capture file, to find records by time and address without
+	 * reading the whole capture.
+	 * <p>
+	 * The records of the capture are indexed in segments of up to
+	 * {@link CaptureFormat#segmentRecords} consecutive records. For every segment, the index
+	 * holds the file range of its records, the lowest and highest record timestamp, and a Bloom
+	 * filter over the addresses of its frames. A query only reads the segments whose time range
+	 * overlaps the queried time range, and whose Bloom filter possibly contains the queried
+	 * addresses.
+	 * <p>
+	 * The index file format is described in {@link CaptureFormat}.<br>
+	 * Entries are written when a segment is complete, and on close. Records following the last
+	 * entry, e.g., after the monitor was terminated abnormally, are not indexed.
+	 */
+	private static final class CaptureIndex
+	{
+		private final DataOutputStream os;
+		private final boolean addresses;
+		private final byte[] bloom = new byte[CaptureFormat.bloomBits / 8];
+
+		private long start = -1;
+		private long end;
+		private long min;
+		private long max;
+		private int records;
+
+		/**
+		 * @param name file name of the index
+		 * @param medium KNX medium of the capture, addresses are only indexed for TP1
+		 * @throws IOException on error creating the index file
+		 */
+		CaptureIndex(final String name, final int medium) throws IOException
+		{
+			os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(name)));
+			addresses = medium == KNXMediumSettings.MEDIUM_TP1;
+			clearBloom();
+			os.writeInt(CaptureFormat.indexMagic);
+			os.writeShort(CaptureFormat.indexVersion);
+			os.writeShort(bloom.length);
+			os.writeInt(CaptureFormat.segmentRecords);
+			os.writeInt(0);
+		}
+
+		/**
+		 * Adds a record of the capture file to the index.
+		 * <p>
+		 *
+		 * @param position file offset of the record
+		 * @param size size of the record, including its header
+		 * @param type record type
+		 * @param timestamp record timestamp in nanoseconds since the epoch
+		 * @param data buffer containing the record data
+		 * @param offset offset of the record data in <code>data</code>
+		 * @param length length of the record data
+		 * @throws IOException on error writing the index
+		 */
+		void add(final long position, final int size, final int type, final long timestamp,
+			final byte[] data, final int offset, final int length) throws IOException
+		{
+			if (start == -1) {
+				start = position;
+				min = max = timestamp;
+			}
+			end = position + size;
+			min = Math.min(min, timestamp);
+			max = Math.max(max, timestamp);
+			if (addresses && type == CaptureFormat.FRAME && length > 0) {
+				// TP1Frame works on a cEMI frame at the start of the buffer
+				final int raw = offset + 2 + (data[offset + 1] & 0xff);
+				if (TP1Frame.isData(data, offset + length, raw)) {
+					CaptureFormat.addKey(bloom, TP1Frame.source(data, raw));
+					CaptureFormat.addKey(bloom, CaptureFormat.destinationKey(data, raw));
+				}
+			}
+			if (++records == CaptureFormat.segmentRecords)
+				writeEntry();
+		}
+
+		void close() throws IOException
+		{
+			try {
+				if (records > 0)
+					writeEntry();
+			}
+			finally {
+				os.close();
+			}
+		}
+
+		private void writeEntry() throws IOException
+		{
+			os.writeLong(start);
+			os.writeLong(end);
+			os.writeLong(min);
+			os.writeLong(max);
+			os.writeInt(records);
+			os.write(bloom);
+			clearBloom();
+			start = -1;
+			records = 0;
+		}
+
+		// without indexed addresses, the filter of a segment matches every address
+		private void clearBloom()
+		{
+			Arrays.fill(bloom, addresses ? 0 : (byte) 0xff);
+		}
+	}
+
+	/**
+	 * Publishes the monitored frames to TCP subscribers, so several clients share the monitor
+	 * links of this tool.
+	 * <p>
+	 * A client connects and sends one line containing a filter expression (see
+	 * {@link FrameFilter}), or an empty line to receive all frames. It then receives the frames
+	 * accepted by its filter as JSON Lines, see {@link StructuredOutput}; on an invalid filter, the
+	 * server answers with an error line and closes the connection.<br>
+	 * A frame is encoded once and copied to the bounded queue of every subscriber accepting it,
+	 * a sender thread per subscriber writes its queue to the socket. If the queue of a slow
+	 * subscriber is full, either the frame is dropped for that subscriber, or the subscriber is
+	 * disconnected. Hence, the consumer thread never waits on a subscriber.
+	 */
+	private final class FanOut extends Thread
+	{
+		private static final int maxSubscribers = 64;
+		// queue size of a subscriber in bytes
+		private static final int queueSize = 256 * 1024;
+		// max. time to wait for the subscription line of a client
+		private static final int subscribeTimeout = 10000;
+
+		private final ServerSocket server;
+		private final boolean disconnect;
+		private volatile Subscriber[] subscribers = new Subscriber[0];
+
+		// encoded record of the frame currently published, only used by the consumer
+		private final StructuredOutput encoder;
+		private final byte[] record = new byte[64 * 1024];
+		private int recordLength;
+		private final boolean[] matches = new boolean[maxSubscribers];
+
+		/**
+		 * @param port TCP port on the loopback interface
+		 * @param disconnect <code>true</code> to disconnect a subscriber with a full queue,
+		 *        <code>false</code> to drop frames for that subscriber
+		 * @throws IOException on error opening the server socket
+		 */
+		FanOut(final int port, final boolean disconnect) throws IOException
+		{
+			super(tool + " server");
+			setDaemon(true);
+			server = new ServerSocket(port, 50, InetAddress.getByName(null));
+			this.disconnect = disconnect;
+			encoder = new StructuredOutput(new WritableByteChannel()
+			{
+				public int write(final ByteBuffer src)
+				{
+					final int n = src.remaining();
+					src.get(record, recordLength, n);
+					recordLength += n;
+					return n;
+				}
+
+				public boolean isOpen()
+				{
+					return true;
+				}
+
+				public void close()
+				{}
+			}, false, StructuredOutput.JSON);
+		}
+
+		public void run()
+		{
+			out.info("serving frames on " + server.getLocalSocketAddress());
+			while (true) {
+				final Socket s;
+				try {
+					s = server.accept();
+				}
+				catch (final IOException e) {
+					// server socket got closed
+					break;
+				}
+				if (subscribers.length >= maxSubscribers) {
+					out.warn("reject subscriber " + s.getRemoteSocketAddress()
+							+ ", too many subscribers");
+					close(s);
+				}
+				else
+					new Subscriber(s).start();
+			}
+		}
+
+		/**
+		 * Publishes a frame or gap marker taken from the receive buffer.
+		 * <p>
+		 *
+		 * @param type entry type, a capture record type
+		 * @param line line identifier
+		 * @param data buffer containing the cEMI frame or gap duration
+		 * @param length length of the data in <code>data</code>
+		 * @param time receive time in nanoseconds since the epoch
+		 */
+		void publish(final int type, final int line, final byte[] data, final int length,
+			final long time)
+		{
+			final Subscriber[] s = subscribers;
+			boolean any = false;
+			for (int i = 0; i < s.length; i++) {
+				final FrameFilter f = s[i].filter;
+				matches[i] = type == CaptureFormat.GAP || f == null || f.accept(data, length);
+				any |= matches[i];
+			}
+			if (!any)
+				return;
+			recordLength = 0;
+			try {
+				if (type == CaptureFormat.GAP)
+					encoder.gap(line, time, gapDuration(data));
+				else
+					encoder.frame(line, time, data, length, groupValues);
+				encoder.flush();
+			}
+			catch (final IOException e) {
+				// we write into our record buffer, which does not throw
+			}
+			for (int i = 0; i < s.length; i++)
+				if (matches[i])
+					s[i].offer(record, recordLength);
+		}
+
+		void quit()
+		{
+			close(server);
+			final Subscriber[] s = subscribers;
+			for (int i = 0; i < s.length; i++)
+				s[i].quit();
+		}
+
+		// the accept check is only a hint, subscribers register after their filter was read
+		private synchronized boolean register(final Subscriber s)
+		{
+			final Subscriber[] old = subscribers;
+			if (old.length >= maxSubscribers)
+				return false;
+			final Subscriber[] l = new Subscriber[old.length + 1];
+			System.arraycopy(old, 0, l, 0, old.length);
+			l[old.length] = s;
+			subscribers = l;
+			return true;
+		}
+
+		private synchronized void unregister(final Subscriber s)
+		{
+			final List l = new ArrayList(Arrays.asList(subscribers));
+			l.remove(s);
+			subscribers = (Subscriber[]) l.toArray(new Subscriber[l.size()]);
+		}
+
+		private void close(final Object socket)
+		{
+			try {
+				if (socket instanceof ServerSocket)
+					((ServerSocket) socket).close();
+				else
+					((Socket) socket).close();
+			}
+			catch (final IOException e) {}
+		}
+
+		private final class Subscriber extends Thread
+		{
+			private final Socket socket;
+			private final String name;
+			private volatile FrameFilter filter;
+
+			// queue ring buffer, guarded by this
+			private final byte[] queue = new byte[queueSize];
+			private int tail;
+			private int size;
+			private boolean closed;
+
+			private long sent;
+			// only written by the consumer
+			private volatile long dropped;
+
+			Subscriber(final Socket s)
+			{
+				super(tool + " subscriber " + s.getRemoteSocketAddress());
+				setDaemon(true);
+				socket = s;
+				name = "subscriber " + s.getRemoteSocketAddress();
+			}
+
+			public void run()
+			{
+				try {
+					if (!subscribe())
+						return;
+					if (!register(this)) {
+						out.warn("reject " + name + ", too many subscribers");
+						return;
+					}
+					try {
+						send(socket.getOutputStream());
+					}
+					finally {
+						unregister(this);
+					}
+					out.info(name + " disconnected, " + sent + " records sent, " + dropped
+							+ " dropped");
+				}
+				catch (final IOException e) {
+					out.info(name + " disconnected: " + e.getMessage() + ", " + sent
+							+ " records sent, " + dropped + " dropped");
+				}
+				catch (final InterruptedException e) {}
+				finally {
+					close(socket);
+				}
+			}
+
+			// called by the consumer thread, copies a record into the queue if it fits
+			void offer(final byte[] data, final int length)
+			{
+				synchronized (this) {
+					if (closed)
+						return;
+					if (queue.length - size >= length) {
+						final int head = (tail + size) % queue.length;
+						final int n = Math.min(length, queue.length - head);
+						System.arraycopy(data, 0, queue, head, n);
+						System.arraycopy(data, n, queue, 0, length - n);
+						size += length;
+						notify();
+						return;
+					}
+				}
+				dropped++;
+				if (disconnect) {
+					out.warn(name + " too slow, disconnecting");
+					quit();
+				}
+			}
+
+			void quit()
+			{
+				synchronized (this) {
+					closed = true;
+					notify();
+				}
+				// unblocks a sender waiting on a slow client
+				close(socket);
+			}
+
+			private boolean subscribe() throws IOException
+			{
+				socket.setSoTimeout(subscribeTimeout);
+				final BufferedReader r = new BufferedReader(new InputStreamReader(socket
+						.getInputStream(), "US-ASCII"));
+				final String expr = r.readLine();
+				socket.setSoTimeout(0);
+				if (expr == null)
+					return false;
+				try {
+					filter = expr.trim().length() > 0 ? FrameFilter.compile(expr) : null;
+				}
+				catch (final KNXIllegalArgumentException e) {
+					final OutputStream os = socket.getOutputStream();
+					os.write(("error: " + e.getMessage() + "\n").getBytes("US-ASCII"));
+					os.flush();
+					return false;
+				}
+				out.info(name + " subscribed" + (filter != null ? " to " + expr : ""));
+				return true;
+			}
+
+			private void send(final OutputStream os) throws IOException, InterruptedException
+			{
+				while (true) {
+					final int start;
+					final int n;
+					synchronized (this) {
+						while (size == 0 && !closed)
+							wait();
+						if (closed)
+							return;
+						start = tail;
+						n = Math.min(size, queue.length - tail);
+					}
+					// the producer only writes to the free part of the queue
+					os.write(queue, start, n);
+					sent += count(start, n);
+					synchronized (this) {
+						tail = (tail + n) % queue.length;
+						size -= n;
+					}
+				}
+			}
+
+			// number of records (lines) in a part of the queue
+			private int count(final int start, final int n)
+			{
+				int records = 0;
+				for (int i = start; i < start + n; i++)
+					if (queue[i] == '\n')
+						records++;
+				return records;
+			}
+		}
+	}
+
+	private final class Consumer extends Thread
+	{
+		// max. time between two ticks without frames
+		private static final long tickInterval = 500 * 1000000L;
+
+		Consumer()
+		{
+			super(tool + " consumer");
+		}
+
+		public void run()
+		{
+			final boolean quiet = options.containsKey("quiet") || stats != null
+					|| topTalkers != null || correlator != null || trigger != null
+					|| structured != null || telegramLog != null;
+			final boolean profiling = profile != null;
+			try {
+				for (int next = merger.take(tickInterval); next != FrameMerger.CLOSED; next = merger
+						.take(tickInterval)) {
+					tick(System.nanoTime(), false);
+					if (next == FrameMerger.TIMEOUT)
+						continue;
+					final Line line = lines[next];
+					final FrameRing ring = line.ring;
+					final int slot = ring.peek();
+					try {
+						final byte[] frame = ring.frames[slot];
+						final int length = ring.lengths[slot];
+						final long timestamp = ring.timestamps[slot];
+						final long taken = profiling ? System.nanoTime() : 0;
+						if (profiling)
+							profile.taken(line.id, ring.depth(), timestamp, taken);
+						if (ring.types[slot] == CaptureFormat.GAP) {
+							record(CaptureFormat.GAP, line.id, frame, length, timestamp);
+							triggerCapture(CaptureFormat.GAP, line.id, frame, length, timestamp);
+							write(CaptureFormat.GAP, line.id, frame, length, timestamp);
+							if (fanOut != null)
+								fanOut.publish(CaptureFormat.GAP, line.id, frame, length,
+										timestamp + timeBase);
+							if (!quiet)
+								onGap(line.id, gapDuration(frame));
+							continue;
+						}
+						if (filter != null && !filter.accept(frame, length)) {
+							rejected++;
+							continue;
+						}
+						if (stats != null)
+							stats[line.id].add(frame, length, timestamp);
+						if (topTalkers != null)
+							topTalkers.add(frame, length);
+						if (correlator != null)
+							correlator.add(frame, length, timestamp);
+						if (detectors != null)
+							detectors[line.id].add(frame, length, timestamp);
+						final long analyzed = profiling ? System.nanoTime() : 0;
+						record(CaptureFormat.FRAME, line.id, frame, length, timestamp);
+						triggerCapture(CaptureFormat.FRAME, line.id, frame, length, timestamp);
+						final boolean show = admit(line, frame, length, timestamp, quiet);
+						if (show)
+							write(CaptureFormat.FRAME, line.id, frame, length, timestamp);
+						if (fanOut != null)
+							fanOut.publish(CaptureFormat.FRAME, line.id, frame, length, timestamp
+									+ timeBase);
+						final long recorded = profiling ? System.nanoTime() : 0;
+						if (!quiet && show)
+							dispatch(line, frame, length);
+						if (profiling)
+							profile.processed(timestamp, taken, analyzed, recorded, System
+									.nanoTime());
+					}
+					catch (final RuntimeException e) {
+						out.error("on monitor indication", e);
+					}
+					finally {
+						ring.release();
+					}
+				}
+			}
+			catch (final InterruptedException e) {}
+			for (int i = 0; overload != null && i < lines.length; i++)
+				repeated(i, overload.flush(i), overload.repeated(i), quiet);
+			tick(System.nanoTime(), true);
+		}
+	}
+
 	private final class ShutdownHandler extends Thread
 	{
 		private ShutdownHandler register()
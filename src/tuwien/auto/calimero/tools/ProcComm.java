@@ -19,23 +19,50 @@
 
 package tuwien.auto.calimero.tools;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
+import tuwien.auto.calimero.CloseEvent;
+import tuwien.auto.calimero.DataUnitBuilder;
+import tuwien.auto.calimero.FrameEvent;
+import tuwien.auto.calimero.DetachEvent;
 import tuwien.auto.calimero.GroupAddress;
+import tuwien.auto.calimero.IndividualAddress;
+import tuwien.auto.calimero.Priority;
 import tuwien.auto.calimero.Settings;
+import tuwien.auto.calimero.cemi.CEMI;
+import tuwien.auto.calimero.cemi.CEMILData;
 import tuwien.auto.calimero.datapoint.Datapoint;
 import tuwien.auto.calimero.datapoint.StateDP;
+import tuwien.auto.calimero.dptxlator.DPTXlator;
+import tuwien.auto.calimero.dptxlator.TranslatorTypes;
 import tuwien.auto.calimero.exception.KNXException;
 import tuwien.auto.calimero.exception.KNXFormatException;
 import tuwien.auto.calimero.exception.KNXIllegalArgumentException;
+import tuwien.auto.calimero.exception.KNXTimeoutException;
 import tuwien.auto.calimero.knxnetip.KNXnetIPConnection;
+import tuwien.auto.calimero.link.KNXLinkClosedException;
 import tuwien.auto.calimero.link.KNXNetworkLink;
 import tuwien.auto.calimero.link.KNXNetworkLinkFT12;
 import tuwien.auto.calimero.link.KNXNetworkLinkIP;
+import tuwien.auto.calimero.link.NetworkLinkListener;
 import tuwien.auto.calimero.link.medium.KNXMediumSettings;
 import tuwien.auto.calimero.link.medium.PLSettings;
 import tuwien.auto.calimero.link.medium.RFSettings;
@@ -47,6 +74,7 @@ import tuwien.auto.calimero.log.LogStreamWriter;
 import tuwien.auto.calimero.log.LogWriter;
 import tuwien.auto.calimero.process.ProcessCommunicator;
 import tuwien.auto.calimero.process.ProcessCommunicatorImpl;
+import tuwien.auto.calimero.process.ProcessEvent;
 import tuwien.auto.calimero.process.ProcessListener;
 
 /**
@@ -68,6 +96,21 @@ import tuwien.auto.calimero.process.ProcessListener;
  * In console mode, the values read from datapoints, as well as occurring problems are written to
  * <code>System.out</code>.
  * <p>
+ * In batch mode, the tool executes a list of read and write commands over one network link,
+ * see {@link Batch}. Group reads are pipelined, with a window of outstanding reads, and the
+ * results are written in input order. Optionally, reads are answered from a cache of the group
+ * values recently seen on the network. Writes are paced to a rate the network can handle, see
+ * {@link WriteScheduler}.
+ * <p>
+ * In subscribe mode, the tool keeps the last value of every group address seen in a group write
+ * or group response, and writes value changes to <code>System.out</code>, and optionally
+ * snapshots of all values to a file, see {@link Subscriber}. Subscribe mode runs until the tool
+ * is quit.
+ * <p>
+ * In benchmark mode, the tool sends group writes at a given rate, or a rate increasing in
+ * stages, and reports the achieved throughput, the confirmation latencies and the error rate of
+ * the network link, see {@link Benchmark}.
+ * <p>
  * Note that by default the communication will use common settings, if not specified
  * otherwise using command line options. Since these settings might be system dependent
  * (for example the local host) and not always predictable, a user may want to specify
@@ -81,6 +124,16 @@ public class ProcComm implements Runnable
 	private static final String version = "1.1";
 	private static final String sep = System.getProperty("line.separator");
 
+	// response timeout of the process communicator in seconds, unless set by option
+	private static final int defaultTimeout = 5;
+	private static final int defaultWindow = 10;
+	// a TP1 line handles about 50 telegrams/s, leave room for the live traffic
+	private static final int defaultRate = 40;
+	// snapshot interval in seconds
+	private static final int defaultInterval = 60;
+	// benchmark stage duration in seconds
+	private static final int defaultDuration = 10;
+
 	private static LogService out = LogManager.getManager().getLogService("tools");
 
 	/**
@@ -88,6 +141,9 @@ public class ProcComm implements Runnable
 	 */
 	protected ProcessCommunicator pc;
 
+	// network link used by the process communicator
+	private KNXNetworkLink link;
+
 	// specifies parameters to use for the network link and process communication
 	private final Map options = new HashMap();
 	//private final LogWriter w;
@@ -154,6 +210,24 @@ public class ProcComm implements Runnable
 	 * <li><code>-serial -s</code> use FT1.2 serial communication</li>
 	 * <li><code>-medium -m</code> <i>id</i> &nbsp;KNX medium [tp0|tp1|p110|p132|rf]
 	 * (defaults to tp1)</li>
+	 * <li><code>-timeout -t</code> <i>seconds</i> &nbsp;response timeout for reads (default
+	 * 5)</li>
+	 * <li><code>-window</code> <i>number</i> &nbsp;max. outstanding reads in batch mode (default
+	 * 10)</li>
+	 * <li><code>-rate</code> <i>number</i> &nbsp;max. read and write requests per second in batch
+	 * mode, writes per second of the first stage in benchmark mode (default 40)</li>
+	 * <li><code>-ramp</code> <i>number</i> &nbsp;increase of the benchmark rate per stage (default
+	 * 0)</li>
+	 * <li><code>-stages</code> <i>number</i> &nbsp;number of benchmark stages (default 1)</li>
+	 * <li><code>-duration</code> <i>seconds</i> &nbsp;duration of a benchmark stage (default
+	 * 10)</li>
+	 * <li><code>-ttl</code> <i>ms</i> &nbsp;in batch mode, answer a read from the last group value
+	 * seen on the network, if it is not older than ms (default 0, always read)</li>
+	 * <li><code>-dpt</code> <i>file</i> &nbsp;decode group values in subscribe mode using the
+	 * datapoint types assigned to group addresses in file, e.g., an ETS group address export</li>
+	 * <li><code>-snapshot</code> <i>file</i> &nbsp;in subscribe mode, periodically write the last
+	 * values of all group addresses to file</li>
+	 * <li><code>-interval</code> <i>seconds</i> &nbsp;snapshot interval (default 60)</li>
 	 * </ul>
 	 * Available commands for process communication:
 	 * <ul>
@@ -161,6 +235,13 @@ public class ProcComm implements Runnable
 	 * using DPT value format</li>
 	 * <li><code>write</code> <i>DPT &nbsp;value &nbsp;KNX-address</i> &nbsp;write to
 	 * group address, using DPT value format</li>
+	 * <li><code>batch</code> <i>file</i> &nbsp;execute the read and write commands in the file,
+	 * one command per line in the format of the commands above, optionally preceded by the KNX
+	 * priority [system|urgent|normal|low] of the command; use "-" to read the commands from the
+	 * standard input</li>
+	 * <li><code>subscribe</code> &nbsp;show group value changes until the tool is quit</li>
+	 * <li><code>benchmark</code> <i>KNX-address</i> &nbsp;send switch writes to the group
+	 * address, and report throughput, confirmation latency and errors</li>
 	 * </ul>
 	 * For the more common datapoint types (DPTs) the following name aliases can be used
 	 * instead of the general DPT number string:
@@ -203,12 +284,23 @@ public class ProcComm implements Runnable
 		Exception thrown = null;
 		boolean canceled = false;
 		try {
-			start(null);
-			readWrite();
+			final Subscriber s = options.containsKey("subscribe") ? new Subscriber() : null;
+			start(s);
+			if (s != null)
+				s.run();
+			else if (options.containsKey("batch"))
+				batch();
+			else if (options.containsKey("benchmark"))
+				new Benchmark().run();
+			else
+				readWrite();
 		}
 		catch (final KNXException e) {
 			thrown = e;
 		}
+		catch (final IOException e) {
+			thrown = e;
+		}
 		catch (final InterruptedException e) {
 			canceled = true;
 			Thread.currentThread().interrupt();
@@ -251,6 +343,7 @@ public class ProcComm implements Runnable
 
 		// create the network link to the KNX network
 		final KNXNetworkLink lnk = createLink();
+		link = lnk;
 		// ??? if this is giving useful output, re-enable lnk logging
 		//if (w != null)
 		//	LogManager.getManager().addWriter(lnk.getName(), w);
@@ -327,16 +420,14 @@ public class ProcComm implements Runnable
 	}
 
 	/**
-	 * Gets the datapoint type identifier from the <code>options</code>, and maps alias
-	 * names of common datapoint types to its datapoint type ID.
+	 * Maps alias names of common datapoint types to its datapoint type ID.
 	 * <p>
-	 * The option map must contain a "dpt" key with value.
 	 *
+	 * @param dpt datapoint type identifier or alias name
 	 * @return datapoint type identifier
 	 */
-	private String getDPT()
+	private static String getDPT(final String dpt)
 	{
-		final String dpt = (String) options.get("dpt");
 		if (dpt.equals("switch"))
 			return "1.001";
 		if (dpt.equals("bool"))
@@ -364,7 +455,7 @@ public class ProcComm implements Runnable
 		// encapsulate information into a datapoint
 		// this is a convenient way to let the process communicator
 		// handle the DPT stuff, so an already formatted string will be returned
-		final Datapoint dp = new StateDP(main, "", 0, getDPT());
+		final Datapoint dp = new StateDP(main, "", 0, getDPT((String) options.get("dpt")));
 		final String s;
 		if (read)
 			s = "read value: " + pc.read(dp);
@@ -377,6 +468,64 @@ public class ProcComm implements Runnable
 		out.info(s);
 	}
 
+	private void batch() throws KNXException, InterruptedException, IOException
+	{
+		final String file = (String) options.get("batch");
+		final BufferedReader r = new BufferedReader(file.equals("-") ? new InputStreamReader(
+				System.in) : new FileReader(file));
+		final int timeout = options.containsKey("timeout") ? ((Integer) options.get("timeout"))
+				.intValue() : defaultTimeout;
+		final Batch b = new Batch(((Integer) options.get("window")).intValue(), timeout,
+				((Integer) options.get("ttl")).intValue(), ((Integer) options.get("rate"))
+						.intValue());
+		link.addLinkListener(b);
+		try {
+			b.run(r);
+		}
+		finally {
+			link.removeLinkListener(b);
+			if (!file.equals("-"))
+				r.close();
+		}
+	}
+
+	/**
+	 * Called by this tool for a line of the benchmark report.
+	 * <p>
+	 * The default implementation writes the line to <code>System.out</code>.
+	 *
+	 * @param line the report line
+	 */
+	protected void onBenchmarkReport(final String line)
+	{
+		System.out.println(line);
+	}
+
+	/**
+	 * Called by this tool for a changed group value in subscribe mode.
+	 * <p>
+	 * The default implementation writes the change to <code>System.out</code>.
+	 *
+	 * @param change the change, containing the time, group address, value, and sender
+	 */
+	protected void onGroupValueChange(final String change)
+	{
+		System.out.println(change);
+	}
+
+	/**
+	 * Called by this tool for the result of a command in batch mode, in order of the commands.
+	 * <p>
+	 * The default implementation writes the result to <code>System.out</code>.
+	 *
+	 * @param result the result, containing the line number of the command, the command, the
+	 *        read value or the error, and the time until completion
+	 */
+	protected void onBatchResult(final String result)
+	{
+		System.out.println(result);
+	}
+
 	/**
 	 * Reads all options in the specified array, and puts relevant options into the
 	 * supplied options map.
@@ -396,6 +545,13 @@ public class ProcComm implements Runnable
 		// add defaults
 		options.put("port", new Integer(KNXnetIPConnection.DEFAULT_PORT));
 		options.put("medium", TPSettings.TP1);
+		options.put("window", new Integer(defaultWindow));
+		options.put("ttl", new Integer(0));
+		options.put("rate", new Integer(defaultRate));
+		options.put("interval", new Integer(defaultInterval));
+		options.put("ramp", new Integer(0));
+		options.put("stages", new Integer(1));
+		options.put("duration", new Integer(defaultDuration));
 
 		int i = 0;
 		for (; i < args.length; i++) {
@@ -433,6 +589,41 @@ public class ProcComm implements Runnable
 					throw new KNXIllegalArgumentException("write DPT: " + e.getMessage(), e);
 				}
 			}
+			else if (isOption(arg, "batch", null)) {
+				if (i + 1 >= args.length)
+					break;
+				options.put("batch", args[++i]);
+			}
+			else if (isOption(arg, "subscribe", null))
+				options.put("subscribe", null);
+			else if (isOption(arg, "benchmark", null)) {
+				if (i + 1 >= args.length)
+					break;
+				try {
+					options.put("benchmark", new GroupAddress(args[++i]));
+				}
+				catch (final KNXFormatException e) {
+					throw new KNXIllegalArgumentException("benchmark: " + e.getMessage(), e);
+				}
+			}
+			else if (isOption(arg, "-ramp", null))
+				options.put("ramp", Integer.decode(args[++i]));
+			else if (isOption(arg, "-stages", null))
+				options.put("stages", Integer.decode(args[++i]));
+			else if (isOption(arg, "-duration", null))
+				options.put("duration", Integer.decode(args[++i]));
+			else if (isOption(arg, "-window", null))
+				options.put("window", Integer.decode(args[++i]));
+			else if (isOption(arg, "-rate", null))
+				options.put("rate", Integer.decode(args[++i]));
+			else if (isOption(arg, "-ttl", null))
+				options.put("ttl", Integer.decode(args[++i]));
+			else if (isOption(arg, "-dpt", null))
+				options.put("dptmap", args[++i]);
+			else if (isOption(arg, "-snapshot", null))
+				options.put("snapshot", args[++i]);
+			else if (isOption(arg, "-interval", null))
+				options.put("interval", Integer.decode(args[++i]));
 			else if (isOption(arg, "-localhost", null))
 				parseHost(args[++i], true, options);
 			else if (isOption(arg, "-localport", null))
@@ -459,8 +650,27 @@ public class ProcComm implements Runnable
 		}
 		if (options.containsKey("host") == options.containsKey("serial"))
 			throw new KNXIllegalArgumentException("no host or serial port specified");
-		if (options.containsKey("read") == options.containsKey("write"))
-			throw new KNXIllegalArgumentException("do either read or write");
+		final int commands = (options.containsKey("read") ? 1 : 0)
+				+ (options.containsKey("write") ? 1 : 0) + (options.containsKey("batch") ? 1 : 0)
+				+ (options.containsKey("subscribe") ? 1 : 0)
+				+ (options.containsKey("benchmark") ? 1 : 0);
+		if (commands != 1)
+			throw new KNXIllegalArgumentException(
+					"do either read, write, batch, subscribe, or benchmark");
+		if (((Integer) options.get("window")).intValue() < 1)
+			throw new KNXIllegalArgumentException("window has to be at least 1");
+		if (((Integer) options.get("rate")).intValue() < 1)
+			throw new KNXIllegalArgumentException("write rate has to be at least 1");
+		if (((Integer) options.get("ttl")).intValue() < 0)
+			throw new KNXIllegalArgumentException("cache TTL has to be at least 0");
+		if (((Integer) options.get("interval")).intValue() < 1)
+			throw new KNXIllegalArgumentException("snapshot interval has to be at least 1 s");
+		if (((Integer) options.get("ramp")).intValue() < 0)
+			throw new KNXIllegalArgumentException("ramp has to be at least 0");
+		if (((Integer) options.get("stages")).intValue() < 1)
+			throw new KNXIllegalArgumentException("number of stages has to be at least 1");
+		if (((Integer) options.get("duration")).intValue() < 1)
+			throw new KNXIllegalArgumentException("stage duration has to be at least 1 s");
 	}
 
 	private static void showUsage()
@@ -481,9 +691,35 @@ public class ProcComm implements Runnable
 		sb.append("  -serial -s              use FT1.2 serial communication").append(sep);
 		sb.append("  -medium -m <id>         KNX medium [tp0|tp1|p110|p132|rf] " + "(default tp1)")
 				.append(sep);
+		sb.append("  -timeout -t <seconds>   response timeout for reads (default " + defaultTimeout
+				+ ")").append(sep);
+		sb.append("  -window <number>        max. outstanding reads in batch mode (default "
+				+ defaultWindow + ")").append(sep);
+		sb.append("  -rate <number>          max. requests per second in batch mode, first stage "
+				+ "rate in benchmark (default " + defaultRate + ")").append(sep);
+		sb.append("  -ramp <number>          increase of the benchmark rate per stage (default 0)")
+				.append(sep);
+		sb.append("  -stages <number>        number of benchmark stages (default 1)").append(sep);
+		sb.append("  -duration <seconds>     duration of a benchmark stage (default "
+				+ defaultDuration + ")").append(sep);
+		sb.append("  -ttl <ms>               answer batch reads from values seen within ms "
+				+ "(default 0)").append(sep);
+		sb.append("  -dpt <file>             decode group values using the group address to DPT "
+				+ "mapping in file").append(sep);
+		sb.append("  -snapshot <file>        write the last values of all group addresses to file")
+				.append(sep);
+		sb.append("  -interval <seconds>     snapshot interval (default " + defaultInterval + ")")
+				.append(sep);
 		sb.append("Available commands for process communication:").append(sep);
 		sb.append("  read <DPT> <KNX address>           read from group address").append(sep);
 		sb.append("  write <DPT> <value> <KNX address>  write to group address").append(sep);
+		sb.append("  batch <file|->                     execute the read/write commands in file,")
+				.append(sep);
+		sb.append("                                     each optionally preceded by a priority")
+				.append(sep);
+		sb.append("  subscribe                          show group value changes").append(sep);
+		sb.append("  benchmark <KNX address>            measure group write throughput")
+				.append(sep);
 		sb.append("Additionally recognized name aliases for DPT numbers:").append(sep);
 		sb.append("  switch (1.001), bool (1.002), string (16.001)").append(sep)
 				.append("  float (9.002), ucount (5.010), angle (5.003)");
@@ -523,6 +759,19 @@ public class ProcComm implements Runnable
 		throw new KNXIllegalArgumentException("unknown medium");
 	}
 
+	private static String getMediumName(final int medium)
+	{
+		if (medium == KNXMediumSettings.MEDIUM_TP0)
+			return "tp0";
+		if (medium == KNXMediumSettings.MEDIUM_TP1)
+			return "tp1";
+		if (medium == KNXMediumSettings.MEDIUM_PL110)
+			return "p110";
+		if (medium == KNXMediumSettings.MEDIUM_PL132)
+			return "p132";
+		return "rf";
+	}
+
 	private static void parseHost(final String host, final boolean local,
 		final Map options)
 	{
@@ -552,6 +801,965 @@ public class ProcComm implements Runnable
 		return arg.equals(longOpt) || shortOpt != null && arg.equals(shortOpt);
 	}
 
+	/**
+	 * Executes the read and write commands of a batch over the one process communicator.
+	 * <p>
+	 * Group reads are pipelined: a read request is sent without waiting for the responses of the
+	 * previous reads, as long as less than <code>window</code> read requests are outstanding. The
+	 * batch listens on the network link for group responses. A read of a group address with an
+	 * outstanding read request does not send another request, but waits for the same response
+	 * (single-flight); a response completes all reads of its group address. A read request not
+	 * answered within the response timeout fails all reads waiting for it. Read requests are
+	 * paced by the token bucket of the {@link WriteScheduler}, together with the writes.<br>
+	 * With a cache TTL set, the batch keeps the group values of all group writes and responses
+	 * seen on the network link, see {@link ProcessImage}. A read is answered from that value
+	 * without a read request, if the value is not older than the TTL; an older value is ignored,
+	 * i.e., entries expire individually by the time of their last update. A write of the batch
+	 * removes the value of its group address once the write completed, since over tunneling the
+	 * written value is only confirmed, not indicated.<br>
+	 * Writes are queued to the {@link WriteScheduler}, which executes them by the process
+	 * communicator, waiting for the confirmation of each write. A read of a group address waits
+	 * until all writes to that group address before it in the batch completed, so a value can be
+	 * written and read back; the following commands wait as well.<br>
+	 * The results are reported in input order, each with the time from sending the request to
+	 * completion, as soon as a command and all commands before it completed. A command which
+	 * cannot be parsed, or fails, does not stop the batch; a closed network link does.
+	 */
+	private final class Batch implements NetworkLinkListener
+	{
+		private static final int GROUP_READ = 0x00;
+		private static final int GROUP_RESPONSE = 0x40;
+		private static final int GROUP_WRITE = 0x80;
+
+		private final int window;
+		private final long timeout;
+		// cache TTL in milliseconds, cache is null for no caching
+		private final long ttl;
+		private final ProcessImage cache;
+		private final byte[] buf = new byte[ProcessImage.maxLength];
+
+		// commands in input order, whose results were not reported yet
+		private final LinkedList results = new LinkedList();
+		// serializes reporting, results complete in the threads of the batch, the network link,
+		// and the write scheduler
+		private final Object reporting = new Object();
+		// reads waiting for the response to an outstanding read request, by raw group address,
+		// each a list of commands
+		private final Map pending = new HashMap();
+		// writes queued or in progress by raw group address, each an int[] holding the count
+		private final Map writing = new HashMap();
+		private boolean closed;
+		// translators by DPT ID
+		private final Map xlators = new HashMap();
+		private final WriteScheduler scheduler;
+
+		private int commands;
+		private int failed;
+		private int cached;
+		private int coalesced;
+
+		/**
+		 * @param window max. number of outstanding read requests
+		 * @param timeout response timeout in seconds
+		 * @param ttl cache TTL in milliseconds, 0 for no caching
+		 * @param rate max. read and write requests per second
+		 */
+		Batch(final int window, final int timeout, final int ttl, final int rate)
+		{
+			scheduler = new WriteScheduler(this, rate);
+			this.window = window;
+			this.timeout = timeout * 1000000000L;
+			this.ttl = ttl;
+			cache = ttl > 0 ? new ProcessImage() : null;
+		}
+
+		void run(final BufferedReader r) throws IOException, KNXException, InterruptedException
+		{
+			final long start = System.nanoTime();
+			scheduler.start();
+			try {
+				run(r, start);
+			}
+			finally {
+				scheduler.quit();
+			}
+		}
+
+		private void run(final BufferedReader r, final long start) throws IOException,
+			KNXException, InterruptedException
+		{
+			int line = 0;
+			for (String s = r.readLine(); s != null; s = r.readLine()) {
+				line++;
+				s = s.trim();
+				if (s.length() == 0 || s.startsWith("#"))
+					continue;
+				final Command c = new Command(line);
+				try {
+					parse(c, s);
+				}
+				catch (final KNXException e) {
+					synchronized (this) {
+						results.add(c);
+						c.complete(System.nanoTime(), null, e.getMessage());
+					}
+					report();
+					continue;
+				}
+				if (c.read)
+					read(c);
+				else {
+					synchronized (this) {
+						results.add(c);
+						final Integer group = new Integer(c.address.getRawAddress());
+						final int[] writes = (int[]) writing.get(group);
+						if (writes == null)
+							writing.put(group, new int[] { 1 });
+						else
+							writes[0]++;
+					}
+					scheduler.submit(c);
+				}
+				report();
+			}
+			synchronized (this) {
+				while (!pending.isEmpty())
+					awaitResponse();
+			}
+			scheduler.drain();
+			report();
+			final double secs = (System.nanoTime() - start) / 1e9;
+			out.info("batch: " + commands + " commands (" + failed + " failed) in "
+					+ (int) (secs * 1000) / 1000.0 + " s, " + (int) (commands / secs * 10) / 10.0
+					+ " commands/s, " + cached + " reads from cache, " + coalesced
+					+ " reads coalesced");
+			out.info("batch: " + scheduler);
+		}
+
+		public void indication(final FrameEvent e)
+		{
+			final CEMI f = e.getFrame();
+			if (!(f instanceof CEMILData))
+				return;
+			final CEMILData ldata = (CEMILData) f;
+			if (!(ldata.getDestination() instanceof GroupAddress))
+				return;
+			final byte[] apdu = ldata.getPayload();
+			final int service = apdu.length < 2 ? -1 : DataUnitBuilder.getAPDUService(apdu);
+			if (service != GROUP_RESPONSE && service != GROUP_WRITE)
+				return;
+			final int raw = ((GroupAddress) ldata.getDestination()).getRawAddress();
+			synchronized (this) {
+				if (cache != null)
+					cache.update(raw, ldata.getSource().getRawAddress(), DataUnitBuilder
+							.extractASDU(apdu), System.currentTimeMillis());
+				if (service != GROUP_RESPONSE)
+					return;
+				final List reads = (List) pending.remove(new Integer(raw));
+				if (reads == null)
+					return;
+				final long now = System.nanoTime();
+				final byte[] asdu = DataUnitBuilder.extractASDU(apdu);
+				for (final Iterator i = reads.iterator(); i.hasNext();)
+					complete((Command) i.next(), asdu, now);
+				notifyAll();
+			}
+			report();
+		}
+
+		public void confirmation(final FrameEvent e)
+		{}
+
+		public synchronized void linkClosed(final CloseEvent e)
+		{
+			closed = true;
+			notifyAll();
+		}
+
+		// called by the write scheduler with the lock of this batch held, once a write completed
+		void written(final Command c)
+		{
+			final Integer group = new Integer(c.address.getRawAddress());
+			final int[] writes = (int[]) writing.get(group);
+			if (--writes[0] == 0)
+				writing.remove(group);
+			if (cache != null)
+				cache.remove(group.intValue());
+			notifyAll();
+		}
+
+		private void read(final Command c) throws KNXException, InterruptedException
+		{
+			final Integer group = new Integer(c.address.getRawAddress());
+			synchronized (this) {
+				// keep the input order of writes and reads of the same group address
+				while (writing.containsKey(group)) {
+					if (!pending.isEmpty())
+						awaitResponse();
+					else if (closed)
+						throw new KNXLinkClosedException("network link closed, batch canceled");
+					else
+						wait();
+				}
+				// a cached value might arrive while waiting for the window
+				while (!pending.containsKey(group) && !fresh(group.intValue())
+						&& pending.size() >= window)
+					awaitResponse();
+				results.add(c);
+				c.sent = System.nanoTime();
+				if (fresh(group.intValue())) {
+					final byte[] asdu = new byte[cache.value(group.intValue(), buf)];
+					System.arraycopy(buf, 0, asdu, 0, asdu.length);
+					c.cached = true;
+					cached++;
+					complete(c, asdu, c.sent);
+					return;
+				}
+				List reads = (List) pending.get(group);
+				if (reads != null) {
+					reads.add(c);
+					coalesced++;
+					return;
+				}
+				pending.put(group, reads = new ArrayList());
+				reads.add(c);
+			}
+			try {
+				scheduler.acquire();
+				link.sendRequest(c.address, c.priority, DataUnitBuilder.createCompactAPDU(
+						GROUP_READ, null));
+			}
+			catch (final KNXTimeoutException e) {
+				synchronized (this) {
+					fail(group, System.nanoTime(), e.getMessage());
+				}
+			}
+		}
+
+		// returns whether the cache holds a value of the group address younger than the TTL
+		private boolean fresh(final int group)
+		{
+			return cache != null && cache.value(group, buf) > 0
+					&& System.currentTimeMillis() - cache.updated(group) <= ttl;
+		}
+
+		private void complete(final Command c, final byte[] asdu, final long time)
+		{
+			try {
+				c.xlator.setData(asdu);
+				c.complete(time, c.xlator.getValue(), null);
+			}
+			catch (final RuntimeException x) {
+				c.complete(time, null, "invalid data for DPT " + c.dpt);
+			}
+		}
+
+		// fails all reads waiting for the read request to a group address
+		private void fail(final Integer group, final long time, final String error)
+		{
+			// the reads might already be answered by a response indication
+			final List reads = (List) pending.remove(group);
+			if (reads == null)
+				return;
+			for (final Iterator i = reads.iterator(); i.hasNext();)
+				((Command) i.next()).complete(time, null, error);
+		}
+
+		// waits for a response, or fails the reads of the oldest read request on its timeout
+		private void awaitResponse() throws KNXLinkClosedException, InterruptedException
+		{
+			if (closed)
+				throw new KNXLinkClosedException("network link closed, batch canceled");
+			// requests are sent in input order, the first waiting read belongs to the oldest
+			// request
+			Command oldest = null;
+			for (final Iterator i = results.iterator(); i.hasNext() && oldest == null;) {
+				final Command c = (Command) i.next();
+				if (c.read && c.done == 0)
+					oldest = c;
+			}
+			final long now = System.nanoTime();
+			final long remaining = oldest.sent + timeout - now;
+			if (remaining > 0) {
+				wait(remaining / 1000000 + 1);
+				return;
+			}
+			fail(new Integer(oldest.address.getRawAddress()), now, "timeout, no response");
+		}
+
+		// reports the completed commands at the head of the results, the caller must not hold
+		// the lock of this batch
+		void report()
+		{
+			synchronized (reporting) {
+				final List done = new ArrayList();
+				synchronized (this) {
+					while (!results.isEmpty() && ((Command) results.getFirst()).done != 0)
+						done.add(results.removeFirst());
+				}
+				for (final Iterator i = done.iterator(); i.hasNext();) {
+					final Command c = (Command) i.next();
+					commands++;
+					if (c.error != null)
+						failed++;
+					onBatchResult(c.toString());
+				}
+			}
+		}
+
+		private void parse(final Command c, final String s) throws KNXException
+		{
+			final String[] all = s.split("\\s+");
+			final int p = getPriority(all[0]);
+			c.priority = p == -1 ? pc.getPriority() : Priority.get(p);
+			final String[] tokens = new String[p == -1 ? all.length : all.length - 1];
+			System.arraycopy(all, all.length - tokens.length, tokens, 0, tokens.length);
+			if (tokens.length == 0)
+				throw new KNXFormatException("no command after priority");
+			c.read = tokens[0].equals("read");
+			final int min = c.read ? 3 : tokens[0].equals("write") ? 4 : -1;
+			if (min == -1)
+				throw new KNXFormatException("unknown command " + tokens[0]);
+			if (tokens.length < min || c.read && tokens.length > min)
+				throw new KNXFormatException("wrong number of arguments for " + tokens[0]);
+			c.address = new GroupAddress(tokens[tokens.length - 1]);
+			c.dpt = getDPT(tokens[1]);
+			if (c.read) {
+				c.xlator = (DPTXlator) xlators.get(c.dpt);
+				if (c.xlator == null) {
+					c.xlator = TranslatorTypes.createTranslator(0, c.dpt);
+					xlators.put(c.dpt, c.xlator);
+				}
+			}
+			else {
+				// a value might contain white space
+				final StringBuffer value = new StringBuffer(tokens[2]);
+				for (int i = 3; i < tokens.length - 1; i++)
+					value.append(' ').append(tokens[i]);
+				c.value = value.toString();
+			}
+		}
+
+		// returns the priority value of a priority name, or -1 for no priority name
+		private int getPriority(final String name)
+		{
+			final String[] names = { "system", "normal", "urgent", "low" };
+			for (int i = 0; i < names.length; i++)
+				if (names[i].equals(name))
+					return i;
+			return -1;
+		}
+	}
+
+	/**
+	 * Executes the writes of a batch, paced by a token bucket and ordered by priority.
+	 * <p>
+	 * The token bucket of the network link holds up to {@link #burst} tokens and is refilled at
+	 * the current rate; a write takes one token, and waits for a token if the bucket is empty.
+	 * The read requests of the batch take their tokens from the same bucket, so the rate limits
+	 * all requests the batch sends.
+	 * Queued writes are executed in order of their KNX priority, system before urgent before
+	 * normal before low, and in input order within the same priority. The queue is bounded, a
+	 * batch submitting to a full queue waits.<br>
+	 * The rate adapts to the network (additive increase, multiplicative decrease): a write which
+	 * is not confirmed in time indicates a congested network or gateway, halves the rate and
+	 * empties the bucket, and is retried up to {@link #retries} times before it fails. Every
+	 * confirmed write increases the rate by one write per second within about a second, up to
+	 * the configured rate.
+	 */
+	private final class WriteScheduler extends Thread
+	{
+		private static final int burst = 5;
+		private static final int retries = 2;
+		private static final int queueSize = 100;
+		// lower limit of the rate in requests per second
+		private static final double minRate = 1;
+
+		private final Batch batch;
+		private final double maxRate;
+		private final Object bucket = new Object();
+		// current rate in requests per second, and the token bucket, guarded by bucket
+		private double rate;
+		private double tokens = burst;
+		private long refilled = System.nanoTime();
+
+		// write queues by rank of priority, see rank()
+		private final LinkedList[] queues = { new LinkedList(), new LinkedList(),
+			new LinkedList(), new LinkedList() };
+		// queued writes, including the write in progress
+		private int queued;
+		private KNXLinkClosedException closed;
+
+		private int writes;
+		private int retried;
+		private int backoffs;
+
+		/**
+		 * @param batch the batch to report completed writes to
+		 * @param rate max. read and write requests per second
+		 */
+		WriteScheduler(final Batch batch, final int rate)
+		{
+			super("ProcComm write scheduler");
+			setDaemon(true);
+			this.batch = batch;
+			maxRate = rate;
+			this.rate = rate;
+		}
+
+		void submit(final Command c) throws KNXLinkClosedException, InterruptedException
+		{
+			synchronized (this) {
+				while (queued >= queueSize && closed == null)
+					wait();
+				if (closed != null)
+					throw closed;
+				queues[rank(c.priority)].add(c);
+				queued++;
+				notifyAll();
+			}
+		}
+
+		// waits until all queued writes are done
+		synchronized void drain() throws KNXLinkClosedException, InterruptedException
+		{
+			while (queued > 0 && closed == null)
+				wait();
+			if (closed != null)
+				throw closed;
+		}
+
+		void quit()
+		{
+			interrupt();
+		}
+
+		public void run()
+		{
+			try {
+				for (Command c = take(); c != null; c = take())
+					write(c);
+			}
+			catch (final InterruptedException e) {}
+		}
+
+		public String toString()
+		{
+			return writes + " writes (" + retried + " retries), " + backoffs
+					+ " backoffs, rate " + (int) (rate * 10) / 10.0 + " requests/s";
+		}
+
+		private void write(final Command c) throws InterruptedException
+		{
+			acquire();
+			synchronized (batch) {
+				if (c.sent == 0)
+					c.sent = System.nanoTime();
+			}
+			final StateDP dp = new StateDP(c.address, "", 0, c.dpt);
+			dp.setPriority(c.priority);
+			String error = null;
+			try {
+				pc.write(dp, c.value);
+				writes++;
+				synchronized (bucket) {
+					rate = Math.min(maxRate, rate + 1 / rate);
+				}
+			}
+			catch (final KNXLinkClosedException e) {
+				synchronized (this) {
+					closed = e;
+				}
+				error = e.getMessage();
+			}
+			catch (final KNXTimeoutException e) {
+				backoffs++;
+				synchronized (bucket) {
+					rate = Math.max(minRate, rate / 2);
+					tokens = 0;
+				}
+				if (c.attempts++ < retries) {
+					retried++;
+					synchronized (this) {
+						queues[rank(c.priority)].addFirst(c);
+					}
+					return;
+				}
+				error = e.getMessage();
+			}
+			catch (final KNXException e) {
+				error = e.getMessage();
+			}
+			synchronized (batch) {
+				c.complete(System.nanoTime(), null, error);
+				batch.written(c);
+			}
+			synchronized (this) {
+				queued--;
+				notifyAll();
+			}
+			batch.report();
+		}
+
+		// returns the next write, or null if the network link was closed
+		private synchronized Command take() throws InterruptedException
+		{
+			while (closed == null) {
+				for (int i = 0; i < queues.length; i++)
+					if (!queues[i].isEmpty())
+						return (Command) queues[i].removeFirst();
+				wait();
+			}
+			return null;
+		}
+
+		// takes a token from the bucket, waits for a token if the bucket is empty; called by this
+		// scheduler for writes, and by the batch for read requests
+		void acquire() throws InterruptedException
+		{
+			while (true) {
+				final long wait;
+				synchronized (bucket) {
+					final long now = System.nanoTime();
+					tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+					refilled = now;
+					if (tokens >= 1) {
+						tokens--;
+						return;
+					}
+					wait = (long) ((1 - tokens) / rate * 1e9);
+				}
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+		}
+
+		// system 0, urgent 1, normal 2, low 3
+		private int rank(final Priority p)
+		{
+			return p == Priority.SYSTEM ? 0 : p == Priority.URGENT ? 1 : p == Priority.NORMAL ? 2
+					: 3;
+		}
+	}
+
+	/**
+	 * Keeps the process image of the KNX installation, i.e., the last value of every group
+	 * address, while the tool is running.
+	 * <p>
+	 * Group writes are received as process listener of the process communicator; group
+	 * responses, which the process communicator does not forward, are received from the network
+	 * link. A value which differs from the last value of its group address is reported as
+	 * change. If a snapshot file is set, all values are written to the file in the snapshot
+	 * interval and when the subscription ends; the file is replaced as a whole, so a reader never
+	 * sees a partially written snapshot.
+	 */
+	private final class Subscriber implements ProcessListener, NetworkLinkListener
+	{
+		private static final int GROUP_RESPONSE = 0x40;
+
+		private final ProcessImage image = new ProcessImage();
+		private final DptMapping values;
+		private final String snapshot;
+		private final long interval;
+		private final SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		private boolean closed;
+
+		Subscriber() throws IOException
+		{
+			final String file = (String) options.get("dptmap");
+			values = file != null ? new DptMapping(file) : null;
+			if (values != null)
+				out.info("datapoint types: " + values);
+			snapshot = (String) options.get("snapshot");
+			interval = ((Integer) options.get("interval")).intValue() * 1000L;
+		}
+
+		void run() throws KNXException, InterruptedException, IOException
+		{
+			link.addLinkListener(this);
+			try {
+				synchronized (this) {
+					long next = System.currentTimeMillis() + interval;
+					while (!closed) {
+						final long now = System.currentTimeMillis();
+						if (snapshot == null)
+							wait();
+						else if (now < next)
+							wait(next - now);
+						else {
+							snapshot();
+							next = now + interval;
+						}
+					}
+				}
+			}
+			finally {
+				link.removeLinkListener(this);
+			}
+		}
+
+		public void groupWrite(final ProcessEvent e)
+		{
+			update(e.getDestination(), e.getSourceAddr(), e.getASDU(), "write");
+		}
+
+		public void detached(final DetachEvent e)
+		{
+			close();
+		}
+
+		public void indication(final FrameEvent e)
+		{
+			final CEMI f = e.getFrame();
+			if (!(f instanceof CEMILData))
+				return;
+			final CEMILData ldata = (CEMILData) f;
+			final byte[] apdu = ldata.getPayload();
+			if (ldata.getDestination() instanceof GroupAddress && apdu.length >= 2
+					&& DataUnitBuilder.getAPDUService(apdu) == GROUP_RESPONSE)
+				update((GroupAddress) ldata.getDestination(), ldata.getSource(), DataUnitBuilder
+						.extractASDU(apdu), "response");
+		}
+
+		public void confirmation(final FrameEvent e)
+		{}
+
+		public void linkClosed(final CloseEvent e)
+		{
+			close();
+		}
+
+		private synchronized void update(final GroupAddress group, final IndividualAddress src,
+			final byte[] asdu, final String service)
+		{
+			final long now = System.currentTimeMillis();
+			if (closed || !image.update(group.getRawAddress(), src.getRawAddress(), asdu, now))
+				return;
+			onGroupValueChange(time.format(new Date(now)) + " " + group + " = "
+					+ value(group.getRawAddress(), asdu) + " (" + src + ", " + service + ")");
+		}
+
+		// writes the final snapshot on close, the caller might be the shutdown hook
+		private synchronized void close()
+		{
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+			try {
+				if (snapshot != null)
+					snapshot();
+			}
+			catch (final IOException e) {
+				out.error("writing snapshot " + snapshot, e);
+			}
+		}
+
+		private void snapshot() throws IOException
+		{
+			final File tmp = new File(snapshot + ".tmp");
+			final BufferedWriter w = new BufferedWriter(new FileWriter(tmp));
+			try {
+				w.write("# group address, value, source, last update, updates");
+				w.newLine();
+				final byte[] buf = new byte[ProcessImage.maxLength];
+				for (int group = 0; group < 0x10000; group++) {
+					final int length = image.value(group, buf);
+					if (length == 0)
+						continue;
+					final byte[] asdu = new byte[length];
+					System.arraycopy(buf, 0, asdu, 0, length);
+					w.write(new GroupAddress(group) + "\t" + value(group, asdu) + "\t"
+							+ new IndividualAddress(image.source(group)) + "\t"
+							+ time.format(new Date(image.updated(group))) + "\t"
+							+ image.updates(group));
+					w.newLine();
+				}
+			}
+			finally {
+				w.close();
+			}
+			final File file = new File(snapshot);
+			// rename does not replace an existing file on every platform
+			if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+				throw new IOException("cannot replace " + snapshot);
+		}
+
+		// returns the translated value, or the ASDU in hex if there is no translator
+		private String value(final int group, final byte[] asdu)
+		{
+			final DPTXlator t = values != null ? values.translator(group) : null;
+			final String v = t != null ? DptMapping.translate(t, asdu) : null;
+			return v != null ? v : DataUnitBuilder.toHex(asdu, " ");
+		}
+	}
+
+	/**
+	 * The last value of every group address, kept in arrays indexed by the raw group address.
+	 * <p>
+	 * A value is the ASDU of a group write or response. Values longer than {@link #maxLength},
+	 * which only occur in extended frames, are not kept.
+	 */
+	private static final class ProcessImage
+	{
+		// max. ASDU length of a group value in a standard frame
+		static final int maxLength = 14;
+
+		private final byte[] values = new byte[0x10000 * maxLength];
+		// value length, 0 for no value
+		private final byte[] lengths = new byte[0x10000];
+		private final short[] sources = new short[0x10000];
+		// time of the last update in milliseconds
+		private final long[] updated = new long[0x10000];
+		private final int[] updates = new int[0x10000];
+
+		/**
+		 * Updates the value of a group address.
+		 * <p>
+		 *
+		 * @param group raw group address
+		 * @param source raw individual address of the sender
+		 * @param asdu the value
+		 * @param time update time in milliseconds
+		 * @return <code>true</code> if the value changed, <code>false</code> otherwise
+		 */
+		boolean update(final int group, final int source, final byte[] asdu, final long time)
+		{
+			if (asdu.length == 0 || asdu.length > maxLength)
+				return false;
+			final int offset = group * maxLength;
+			boolean changed = lengths[group] != asdu.length;
+			for (int i = 0; i < asdu.length && !changed; i++)
+				changed = values[offset + i] != asdu[i];
+			System.arraycopy(asdu, 0, values, offset, asdu.length);
+			lengths[group] = (byte) asdu.length;
+			sources[group] = (short) source;
+			updated[group] = time;
+			updates[group]++;
+			return changed;
+		}
+
+		/**
+		 * Copies the value of a group address into the supplied buffer.
+		 * <p>
+		 *
+		 * @param group raw group address
+		 * @param buf buffer of at least {@link #maxLength} bytes
+		 * @return the value length, 0 if the group address has no value
+		 */
+		int value(final int group, final byte[] buf)
+		{
+			System.arraycopy(values, group * maxLength, buf, 0, lengths[group]);
+			return lengths[group];
+		}
+
+		/**
+		 * Removes the value of a group address.
+		 * <p>
+		 *
+		 * @param group raw group address
+		 */
+		void remove(final int group)
+		{
+			lengths[group] = 0;
+		}
+
+		int source(final int group)
+		{
+			return sources[group] & 0xffff;
+		}
+
+		long updated(final int group)
+		{
+			return updated[group];
+		}
+
+		int updates(final int group)
+		{
+			return updates[group];
+		}
+	}
+
+	/**
+	 * Measures the group write throughput of the network link.
+	 * <p>
+	 * The benchmark runs in stages, the first stage sends at the configured rate, and every
+	 * following stage increases the rate by the ramp. A stage sends <i>rate</i> x <i>duration</i>
+	 * group writes to the benchmark group address, alternating the switch values off and on. The
+	 * writes are scheduled at fixed intervals, independent of the time the previous write took;
+	 * every write waits for its confirmation, therefore a link that cannot keep up falls behind
+	 * schedule, and the stage takes longer than its duration.<br>
+	 * For every stage, the report contains the number of sent, confirmed and failed writes, the
+	 * error rate, the achieved throughput of confirmed writes, and the confirmation latency
+	 * percentiles. A write fails if it is not (positively) confirmed in time. The benchmark stops
+	 * after a stage with an error rate above {@link #maxErrorRate}. The last report line shows
+	 * the highest rate the link sustained, i.e., with an error rate of at most
+	 * {@link #sustainedErrorRate} and at least 95 % of the rate achieved.<br>
+	 * The report is a fixed-column table, to compare runs with different gateways or settings.
+	 * With KNXnet/IP routing, there are no confirmations from the network, the latency is the
+	 * time to send the routing indication.
+	 */
+	private final class Benchmark
+	{
+		private static final int GROUP_WRITE = 0x80;
+		private static final double maxErrorRate = 0.1;
+		private static final double sustainedErrorRate = 0.01;
+
+		private final GroupAddress dst = (GroupAddress) options.get("benchmark");
+		private final int rate = ((Integer) options.get("rate")).intValue();
+		private final int ramp = ((Integer) options.get("ramp")).intValue();
+		private final int stages = ((Integer) options.get("stages")).intValue();
+		private final int duration = ((Integer) options.get("duration")).intValue();
+		// throughput of the last stage in confirmed writes per second
+		private double achieved;
+
+		void run() throws KNXLinkClosedException, InterruptedException
+		{
+			final String connection = options.containsKey("serial") ? "FT1.2 "
+					+ options.get("serial") : (options.containsKey("routing") ? "routing "
+					: "tunneling ") + ((InetAddress) options.get("host")).getHostAddress() + ":"
+					+ options.get("port") + (options.containsKey("nat") ? " (NAT)" : "");
+			onBenchmarkReport(tool + " " + version + " benchmark "
+					+ new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + ", "
+					+ connection + ", medium " + getMediumName(((KNXMediumSettings) options
+							.get("medium")).getMedium()) + ", group address " + dst + ", priority "
+					+ pc.getPriority() + ", " + duration + " s per stage");
+			onBenchmarkReport("  rate/s   sent  confirmed  failed  error %  achieved/s  p50 ms  "
+					+ "p90 ms  p99 ms  max ms");
+			int sustained = 0;
+			for (int stage = 0; stage < stages; stage++) {
+				final int r = rate + stage * ramp;
+				final double errors = stage(r);
+				if (errors > maxErrorRate)
+					break;
+				if (errors <= sustainedErrorRate && achieved >= 0.95 * r)
+					sustained = r;
+			}
+			onBenchmarkReport(sustained > 0 ? "sustained rate: " + sustained + " writes/s"
+					: "sustained rate: none of the stages");
+		}
+
+		// runs a stage, and returns its error rate
+		private double stage(final int r) throws KNXLinkClosedException, InterruptedException
+		{
+			final int writes = r * duration;
+			final long interval = 1000000000L / r;
+			final long[] latencies = new long[writes];
+			final byte[][] apdus = {
+				DataUnitBuilder.createCompactAPDU(GROUP_WRITE, new byte[] { 0 }),
+				DataUnitBuilder.createCompactAPDU(GROUP_WRITE, new byte[] { 1 }) };
+			final Priority p = pc.getPriority();
+			int confirmed = 0;
+			final long start = System.nanoTime();
+			for (int i = 0; i < writes; i++) {
+				final long wait = start + i * interval - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				final long sent = System.nanoTime();
+				try {
+					link.sendRequestWait(dst, p, apdus[i & 1]);
+					latencies[confirmed++] = System.nanoTime() - sent;
+				}
+				catch (final KNXTimeoutException e) {
+					out.info("write " + (i + 1) + " of stage " + r + "/s failed: "
+							+ e.getMessage());
+				}
+			}
+			final double elapsed = (System.nanoTime() - start) / 1e9;
+			achieved = confirmed / elapsed;
+			final int failed = writes - confirmed;
+			final double errors = (double) failed / writes;
+			Arrays.sort(latencies, 0, confirmed);
+
+			final StringBuffer sb = new StringBuffer();
+			pad(sb, Integer.toString(r), 8);
+			pad(sb, Integer.toString(writes), 7);
+			pad(sb, Integer.toString(confirmed), 11);
+			pad(sb, Integer.toString(failed), 8);
+			pad(sb, format(errors * 100, 100), 9);
+			pad(sb, format(achieved, 10), 12);
+			pad(sb, percentile(latencies, confirmed, 0.5), 8);
+			pad(sb, percentile(latencies, confirmed, 0.9), 8);
+			pad(sb, percentile(latencies, confirmed, 0.99), 8);
+			pad(sb, percentile(latencies, confirmed, 1), 8);
+			onBenchmarkReport(sb.toString());
+			return errors;
+		}
+
+		// returns the latency percentile in milliseconds of the sorted latencies
+		private String percentile(final long[] sorted, final int n, final double q)
+		{
+			if (n == 0)
+				return "-";
+			final int k = Math.max(0, (int) Math.ceil(q * n) - 1);
+			return format(sorted[k] / 1e6, 10);
+		}
+
+		private String format(final double value, final int scale)
+		{
+			return Double.toString(Math.round(value * scale) / (double) scale);
+		}
+
+		private void pad(final StringBuffer sb, final String s, final int width)
+		{
+			for (int i = s.length(); i < width; i++)
+				sb.append(' ');
+			sb.append(s);
+		}
+	}
+
+	// a command of a batch, times are in nanoseconds
+	private static final class Command
+	{
+		final int line;
+		boolean read;
+		Priority priority;
+		String dpt;
+		String value;
+		GroupAddress address;
+		DPTXlator xlator;
+
+		long sent;
+		long done;
+		String result;
+		String error;
+		boolean cached;
+		int attempts;
+
+		Command(final int line)
+		{
+			this.line = line;
+		}
+
+		void complete(final long time, final String result, final String error)
+		{
+			if (sent == 0)
+				sent = time;
+			done = time;
+			this.result = result;
+			this.error = error;
+		}
+
+		public String toString()
+		{
+			final StringBuffer sb = new StringBuffer();
+			sb.append("line ").append(line).append(": ");
+			if (address == null)
+				sb.append("failed: ").append(error);
+			else {
+				sb.append(read ? "read " : "write ").append(address);
+				if (error != null)
+					sb.append(" failed: ").append(error);
+				else if (read)
+					sb.append(" = ").append(result);
+				else
+					sb.append(" = ").append(value);
+				sb.append(" (").append((done - sent) / 100000 / 10.0).append(" ms");
+				sb.append(cached ? ", cached)" : ")");
+			}
+			return sb.toString();
+		}
+	}
+
 	private final class ShutdownHandler extends Thread
 	{
 		ShutdownHandler register()
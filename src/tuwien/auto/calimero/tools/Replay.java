@@ -0,0 +1,622 @@
+/*
+    Calimero 2 - A library for KNX network access
+    Copyright (c) 2013 B. Malinowsky
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package tuwien.auto.calimero.tools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import tuwien.auto.calimero.GroupAddress;
+import tuwien.auto.calimero.Priority;
+import tuwien.auto.calimero.Settings;
+import tuwien.auto.calimero.exception.KNXException;
+import tuwien.auto.calimero.exception.KNXFormatException;
+import tuwien.auto.calimero.exception.KNXIllegalArgumentException;
+import tuwien.auto.calimero.exception.KNXTimeoutException;
+import tuwien.auto.calimero.knxnetip.KNXnetIPConnection;
+import tuwien.auto.calimero.link.KNXLinkClosedException;
+import tuwien.auto.calimero.link.KNXNetworkLink;
+import tuwien.auto.calimero.link.KNXNetworkLinkFT12;
+import tuwien.auto.calimero.link.KNXNetworkLinkIP;
+import tuwien.auto.calimero.link.medium.KNXMediumSettings;
+import tuwien.auto.calimero.link.medium.PLSettings;
+import tuwien.auto.calimero.link.medium.RFSettings;
+import tuwien.auto.calimero.link.medium.TPSettings;
+import tuwien.auto.calimero.log.LogLevel;
+import tuwien.auto.calimero.log.LogManager;
+import tuwien.auto.calimero.log.LogService;
+import tuwien.auto.calimero.log.LogStreamWriter;
+import tuwien.auto.calimero.log.LogWriter;
+import tuwien.auto.calimero.tools.CaptureFormat.TP1Frame;
+
+/**
+ * A tool for Calimero replaying the group telegrams of a capture file recorded by
+ * {@link NetworkMonitor} into a KNX network.
+ * <p>
+ * Replay is a {@link Runnable} tool implementation which reads the frames of a binary capture
+ * file, and sends every group telegram (repetitions excluded) using a KNX network link. The
+ * telegrams are sent with their original inter-frame timing, scaled by a speed factor, or as fast
+ * as the link allows (waiting for the confirmation of each telegram).<br>
+ * Timing is based on {@link System#nanoTime()}: the replay thread sleeps until shortly before a
+ * telegram is due, and yields for the remaining time. The achieved and the target rate of
+ * telegrams, as well as the lateness of the sent telegrams with respect to their schedule, are
+ * reported in regular intervals and on completion.
+ * <p>
+ * Only capture files are supported as input, the text and structured output of the network
+ * monitor do not preserve the exact TPDU (e.g., whether a value is contained in the APCI).
+ * <p>
+ * When running this tool from the console, the <code>main</code>- method of this class is invoked,
+ * otherwise use this class in the context appropriate to a {@link Runnable}.<br>
+ * In console mode, the replay status, as well as errors and problems during its execution are
+ * written to <code>System.out</code>.
+ *
+ * @author B. Malinowsky
+ */
+public class Replay implements Runnable
+{
+	private static final String tool = "Replay";
+	private static final String version = "1.0";
+	private static final String sep = System.getProperty("line.separator");
+
+	// the replay thread yields instead of sleeping within this time before a telegram is due
+	private static final long spinTime = 5000000;
+	// interval of status reports
+	private static final long reportInterval = 10000000000L;
+
+	private static LogService out = LogManager.getManager().getLogService("tools");
+
+	private final Map options = new HashMap();
+
+	// statistics of the current report interval and in total
+	private long intervalStart;
+	private long intervalFirst;
+	private long intervalLast;
+	private long intervalSent;
+	// sent telegrams recorded after intervalFirst, used for the target rate
+	private long intervalSpanned;
+	private long intervalLateness;
+	private long sent;
+	private long failed;
+	private long lateness;
+	private long maxLateness;
+	private long late;
+
+	/**
+	 * Creates a new Replay instance using the supplied options.
+	 * <p>
+	 * Mandatory arguments are the name of the capture file, and an IP host or a serial port
+	 * identifier. See {@link #main(String[])} for the list of options.
+	 *
+	 * @param args list with options
+	 * @throws KNXIllegalArgumentException on unknown/invalid options
+	 */
+	public Replay(final String[] args)
+	{
+		try {
+			parseOptions(args);
+		}
+		catch (final KNXIllegalArgumentException e) {
+			throw e;
+		}
+		catch (final RuntimeException e) {
+			throw new KNXIllegalArgumentException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Entry point for running the Replay tool.
+	 * <p>
+	 * Syntax: Replay [options] &lt;capture file&gt; &lt;host|port&gt;
+	 * <p>
+	 * To show the usage message of this tool on the console, supply the command line option -help
+	 * (or -h).<br>
+	 * Command line options are treated case sensitive. Available options:
+	 * <ul>
+	 * <li><code>-help -h</code> show help message</li>
+	 * <li><code>-version</code> show tool/library version and exit</li>
+	 * <li><code>-verbose -v</code> enable verbose status output</li>
+	 * <li><code>-localhost</code> <i>id</i> &nbsp;local IP/host name</li>
+	 * <li><code>-localport</code> <i>number</i> &nbsp;local UDP port (default system assigned)</li>
+	 * <li><code>-port -p</code> <i>number</i> &nbsp;UDP port on host (default 3671)</li>
+	 * <li><code>-nat -n</code> enable Network Address Translation</li>
+	 * <li><code>-routing</code> use KNXnet/IP routing</li>
+	 * <li><code>-serial -s</code> use FT1.2 serial communication</li>
+	 * <li><code>-medium -m</code> <i>id</i> &nbsp;KNX medium [tp0|tp1|p110|p132|rf] (defaults to
+	 * tp1)</li>
+	 * <li><code>-speed</code> <i>factor</i> &nbsp;replay speed relative to the recorded timing,
+	 * e.g., 2 for twice as fast (default 1)</li>
+	 * <li><code>-fast</code> send as fast as the link allows, ignoring the recorded timing</li>
+	 * <li><code>-line</code> <i>id</i> &nbsp;only replay frames recorded on the line with the
+	 * given identifier</li>
+	 * </ul>
+	 *
+	 * @param args command line options
+	 */
+	public static void main(final String[] args)
+	{
+		final LogWriter w = LogStreamWriter.newUnformatted(LogLevel.WARN, System.out, true, false);
+		out.addWriter(w);
+		try {
+			final Replay r = new Replay(args);
+			if (r.options.containsKey("verbose"))
+				w.setLogLevel(LogLevel.TRACE);
+			final ShutdownHandler sh = new ShutdownHandler().register();
+			r.run();
+			sh.unregister();
+		}
+		catch (final KNXIllegalArgumentException e) {
+			out.error("parsing options", e);
+		}
+		LogManager.getManager().shutdown(true);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run()
+	{
+		if (options.isEmpty()) {
+			out.log(LogLevel.ALWAYS, "A tool for replaying KNX network monitor captures", null);
+			showVersion();
+			out.log(LogLevel.ALWAYS, "type -help for help message", null);
+			return;
+		}
+		if (options.containsKey("help")) {
+			showUsage();
+			return;
+		}
+		if (options.containsKey("version")) {
+			showVersion();
+			return;
+		}
+
+		Exception thrown = null;
+		boolean canceled = false;
+		DataInputStream in = null;
+		KNXNetworkLink link = null;
+		try {
+			final String name = (String) options.get("file");
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(name)));
+			readHeader(in);
+			link = createLink();
+			replay(in, link);
+		}
+		catch (final IOException e) {
+			thrown = e;
+		}
+		catch (final KNXException e) {
+			thrown = e;
+		}
+		catch (final RuntimeException e) {
+			thrown = e;
+		}
+		catch (final InterruptedException e) {
+			canceled = true;
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if (link != null)
+				link.close();
+			try {
+				if (in != null)
+					in.close();
+			}
+			catch (final IOException e) {}
+			report(System.nanoTime(), true);
+			onCompletion(thrown, canceled);
+		}
+	}
+
+	/**
+	 * Called by this tool on completion.
+	 * <p>
+	 *
+	 * @param thrown the thrown exception if operation completed due to an raised exception,
+	 *        <code>null</code> otherwise
+	 * @param canceled whether the operation got canceled before its planned end
+	 */
+	protected void onCompletion(final Exception thrown, final boolean canceled)
+	{
+		if (canceled)
+			out.info(tool + " stopped");
+		if (thrown != null)
+			out.error(thrown.getMessage() != null ? thrown.getMessage() : thrown.getClass()
+					.getName());
+	}
+
+	private void readHeader(final DataInputStream in) throws IOException, KNXException
+	{
+		try {
+			if (in.readInt() != CaptureFormat.magic)
+				throw new KNXFormatException("no KNX capture file");
+			final int v = in.readUnsignedShort();
+			if (v > CaptureFormat.formatVersion)
+				throw new KNXFormatException("unsupported capture format version " + v);
+			final int medium = in.readUnsignedShort();
+			if (medium != KNXMediumSettings.MEDIUM_TP1)
+				throw new KNXFormatException("replay requires a capture of KNX medium tp1");
+			out.info("capture started " + new Date(in.readLong()));
+		}
+		catch (final EOFException e) {
+			throw new KNXFormatException("no KNX capture file");
+		}
+	}
+
+	private void replay(final DataInputStream in, final KNXNetworkLink link) throws IOException,
+		KNXLinkClosedException, InterruptedException
+	{
+		final boolean fast = options.containsKey("fast");
+		final double speed = ((Double) options.get("speed")).doubleValue();
+		final int line = options.containsKey("line") ? ((Integer) options.get("line")).intValue()
+				: -1;
+		byte[] frame = new byte[64];
+		long first = 0;
+		long start = 0;
+		while (true) {
+			final int length;
+			try {
+				length = in.readUnsignedShort();
+			}
+			catch (final EOFException e) {
+				break;
+			}
+			// end of records
+			if (length == 0)
+				break;
+			final int type;
+			final long timestamp;
+			try {
+				type = in.readUnsignedByte();
+				final int l = in.readUnsignedByte();
+				timestamp = in.readLong();
+				if (frame.length < length)
+					frame = new byte[length];
+				in.readFully(frame, 0, length);
+				if (type != CaptureFormat.FRAME || line != -1 && l != line)
+					continue;
+			}
+			catch (final EOFException e) {
+				out.warn("last record truncated");
+				break;
+			}
+
+			// only group telegrams, repetitions are sent by the link layer if necessary
+			final int raw = TP1Frame.offset(frame);
+			if (!TP1Frame.isData(frame, length, raw) || TP1Frame.isRepeated(frame, raw)
+					|| !TP1Frame.isGroupDestination(frame, raw))
+				continue;
+			final GroupAddress dst = new GroupAddress(TP1Frame.destination(frame, raw));
+			final Priority p = Priority.get(TP1Frame.priority(frame, raw));
+			final int tpdu = TP1Frame.tpdu(frame, raw);
+			final int tpduLength = Math.min(TP1Frame.tpduLength(frame, raw), length - tpdu);
+			final byte[] nsdu = new byte[tpduLength];
+			System.arraycopy(frame, tpdu, nsdu, 0, tpduLength);
+
+			long now = System.nanoTime();
+			if (start == 0) {
+				first = timestamp;
+				start = now;
+				intervalStart = now;
+			}
+			long delay = 0;
+			if (!fast) {
+				final long due = start + (long) ((timestamp - first) / speed);
+				now = waitUntil(due);
+				delay = now - due;
+			}
+			try {
+				if (fast)
+					link.sendRequestWait(dst, p, nsdu);
+				else
+					link.sendRequest(dst, p, nsdu);
+				sent(delay, timestamp);
+			}
+			catch (final KNXTimeoutException e) {
+				failed++;
+				out.warn("sending to " + dst + ": " + e.getMessage());
+			}
+			report(System.nanoTime(), false);
+		}
+	}
+
+	// returns the time the wait ended
+	private static long waitUntil(final long due) throws InterruptedException
+	{
+		while (true) {
+			final long now = System.nanoTime();
+			final long remaining = due - now;
+			if (remaining <= 0)
+				return now;
+			if (remaining > spinTime)
+				Thread.sleep((remaining - spinTime) / 1000000);
+			else if (Thread.interrupted())
+				throw new InterruptedException();
+			else
+				Thread.yield();
+		}
+	}
+
+	private void sent(final long delay, final long timestamp)
+	{
+		sent++;
+		intervalSent++;
+		// the first telegram only opens the recorded time span, later intervals start at the
+		// last telegram of the previous one
+		if (sent == 1)
+			intervalFirst = timestamp;
+		else
+			intervalSpanned++;
+		intervalLast = timestamp;
+		lateness += delay;
+		intervalLateness += delay;
+		maxLateness = Math.max(maxLateness, delay);
+		if (delay >= 1000000)
+			late++;
+	}
+
+	private void report(final long now, final boolean last)
+	{
+		final long elapsed = now - intervalStart;
+		if (elapsed < reportInterval && !last || intervalStart == 0)
+			return;
+		final StringBuffer sb = new StringBuffer();
+		sb.append(last ? "replayed " : "").append(sent).append(" telegrams");
+		if (failed > 0)
+			sb.append(", ").append(failed).append(" failed");
+		sb.append(", ").append(format(intervalSent * 1e9 / elapsed)).append(" telegrams/s");
+		final long recorded = intervalLast - intervalFirst;
+		if (!options.containsKey("fast") && recorded > 0) {
+			final double speed = ((Double) options.get("speed")).doubleValue();
+			sb.append(" (target ").append(format(intervalSpanned * 1e9 * speed / recorded))
+					.append(")");
+		}
+		if (intervalSent > 0)
+			sb.append(", lateness avg ").append(format(intervalLateness / 1e6 / intervalSent))
+					.append(" ms");
+		if (sent > 0)
+			sb.append(", total avg ").append(format(lateness / 1e6 / sent)).append(" ms, max ")
+					.append(format(maxLateness / 1e6)).append(" ms, ").append(late)
+					.append(" telegrams late by 1 ms or more");
+		out.log(LogLevel.ALWAYS, sb.toString(), null);
+		intervalStart = now;
+		intervalFirst = intervalLast;
+		intervalSent = 0;
+		intervalSpanned = 0;
+		intervalLateness = 0;
+	}
+
+	private static String format(final double d)
+	{
+		return String.valueOf(Math.round(d * 100) / 100.0);
+	}
+
+	/**
+	 * Creates the KNX network link to access the network specified in <code>options</code>.
+	 * <p>
+	 *
+	 * @return the KNX network link
+	 * @throws KNXException on problems on link creation
+	 * @throws InterruptedException on interrupted thread
+	 */
+	private KNXNetworkLink createLink() throws KNXException, InterruptedException
+	{
+		final KNXMediumSettings medium = (KNXMediumSettings) options.get("medium");
+		if (options.containsKey("serial")) {
+			// create FT1.2 network link
+			final String p = (String) options.get("serial");
+			try {
+				return new KNXNetworkLinkFT12(Integer.parseInt(p), medium);
+			}
+			catch (final NumberFormatException e) {
+				return new KNXNetworkLinkFT12(p, medium);
+			}
+		}
+		// create local and remote socket address for network link
+		final InetSocketAddress local = createLocalSocket((InetAddress) options.get("localhost"),
+				(Integer) options.get("localport"));
+		final InetSocketAddress host = new InetSocketAddress((InetAddress) options.get("host"),
+				((Integer) options.get("port")).intValue());
+		final int mode = options.containsKey("routing") ? KNXNetworkLinkIP.ROUTING
+				: KNXNetworkLinkIP.TUNNELING;
+		return new KNXNetworkLinkIP(mode, local, host, options.containsKey("nat"), medium);
+	}
+
+	/**
+	 * Reads all options in the specified array, and puts relevant options into the supplied options
+	 * map.
+	 * <p>
+	 * On options not relevant for replaying (like <code>help</code>), this method will take
+	 * appropriate action (like showing usage information). On occurrence of such an option, other
+	 * options will be ignored. On unknown options, a KNXIllegalArgumentException is thrown.
+	 *
+	 * @param args array with command line options
+	 */
+	private void parseOptions(final String[] args)
+	{
+		if (args.length == 0)
+			return;
+
+		// add defaults
+		options.put("port", new Integer(KNXnetIPConnection.DEFAULT_PORT));
+		options.put("medium", TPSettings.TP1);
+		options.put("speed", new Double(1));
+
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (isOption(arg, "-help", "-h")) {
+				options.put("help", null);
+				return;
+			}
+			if (isOption(arg, "-version", null)) {
+				options.put("version", null);
+				return;
+			}
+			if (isOption(arg, "-verbose", "-v"))
+				options.put("verbose", null);
+			else if (isOption(arg, "-localhost", null))
+				options.put("localhost", getHost(args[++i]));
+			else if (isOption(arg, "-localport", null))
+				options.put("localport", Integer.decode(args[++i]));
+			else if (isOption(arg, "-port", "-p"))
+				options.put("port", Integer.decode(args[++i]));
+			else if (isOption(arg, "-nat", "-n"))
+				options.put("nat", null);
+			else if (isOption(arg, "-routing", null))
+				options.put("routing", null);
+			else if (isOption(arg, "-serial", "-s"))
+				options.put("serial", null);
+			else if (isOption(arg, "-medium", "-m"))
+				options.put("medium", getMedium(args[++i]));
+			else if (isOption(arg, "-speed", null))
+				options.put("speed", Double.valueOf(args[++i]));
+			else if (isOption(arg, "-fast", null))
+				options.put("fast", null);
+			else if (isOption(arg, "-line", null))
+				options.put("line", Integer.decode(args[++i]));
+			else if (!options.containsKey("file"))
+				options.put("file", arg);
+			else if (options.containsKey("serial") && options.get("serial") == null)
+				// add port number/identifier to serial option
+				options.put("serial", arg);
+			else if (!options.containsKey("serial") && !options.containsKey("host"))
+				options.put("host", getHost(arg));
+			else
+				throw new KNXIllegalArgumentException("unknown option " + arg);
+		}
+		if (!options.containsKey("file"))
+			throw new KNXIllegalArgumentException("no capture file specified");
+		if (!options.containsKey("host") && options.get("serial") == null)
+			throw new KNXIllegalArgumentException("no host or serial port specified");
+		if (((Double) options.get("speed")).doubleValue() <= 0)
+			throw new KNXIllegalArgumentException("speed has to be greater than 0");
+	}
+
+	private static boolean isOption(final String arg, final String longOpt, final String shortOpt)
+	{
+		return arg.equals(longOpt) || shortOpt != null && arg.equals(shortOpt);
+	}
+
+	private static void showUsage()
+	{
+		final StringBuffer sb = new StringBuffer();
+		sb.append("usage: ").append(tool).append(" [options] <capture file> <host|port>")
+				.append(sep);
+		sb.append("options:").append(sep);
+		sb.append("  -help -h                show this help message").append(sep);
+		sb.append("  -version                show tool/library version and exit").append(sep);
+		sb.append("  -verbose -v             enable verbose status output").append(sep);
+		sb.append("  -localhost <id>         local IP/host name").append(sep);
+		sb.append("  -localport <number>     local UDP port (default system assigned)").append(sep);
+		sb.append("  -port -p <number>       UDP port on <host> (default ")
+				.append(KNXnetIPConnection.DEFAULT_PORT + ")").append(sep);
+		sb.append("  -nat -n                 enable Network Address Translation").append(sep);
+		sb.append("  -routing                use KNX net/IP routing " + "(always on port 3671)")
+				.append(sep);
+		sb.append("  -serial -s              use FT1.2 serial communication").append(sep);
+		sb.append("  -medium -m <id>         KNX medium [tp0|tp1|p110|p132|rf] " + "(default tp1)")
+				.append(sep);
+		sb.append("  -speed <factor>         replay speed relative to recorded timing (default 1)")
+				.append(sep);
+		sb.append("  -fast                   send as fast as the link allows").append(sep);
+		sb.append("  -line <id>              only replay frames recorded on line <id>").append(sep);
+		out.log(LogLevel.ALWAYS, sb.toString(), null);
+	}
+
+	private static void showVersion()
+	{
+		out.log(LogLevel.ALWAYS,
+				tool + " version " + version + " using " + Settings.getLibraryHeader(false), null);
+	}
+
+	/**
+	 * Creates a medium settings type for the supplied medium identifier.
+	 * <p>
+	 *
+	 * @param id a medium identifier from command line option
+	 * @return medium settings object
+	 * @throws KNXIllegalArgumentException on unknown medium identifier
+	 */
+	private static KNXMediumSettings getMedium(final String id)
+	{
+		if (id.equals("tp0"))
+			return TPSettings.TP0;
+		else if (id.equals("tp1"))
+			return TPSettings.TP1;
+		else if (id.equals("p110"))
+			return new PLSettings(false);
+		else if (id.equals("p132"))
+			return new PLSettings(true);
+		else if (id.equals("rf"))
+			return new RFSettings(null);
+		else
+			throw new KNXIllegalArgumentException("unknown medium");
+	}
+
+	private static InetAddress getHost(final String host)
+	{
+		try {
+			return InetAddress.getByName(host);
+		}
+		catch (final UnknownHostException e) {
+			throw new KNXIllegalArgumentException("failed to read host " + host, e);
+		}
+	}
+
+	private static InetSocketAddress createLocalSocket(final InetAddress host, final Integer port)
+	{
+		final int p = port != null ? port.intValue() : 0;
+		try {
+			return host != null ? new InetSocketAddress(host, p) : p != 0 ? new InetSocketAddress(
+					InetAddress.getLocalHost(), p) : null;
+		}
+		catch (final UnknownHostException e) {
+			throw new KNXIllegalArgumentException("failed to get local host " + e.getMessage(), e);
+		}
+	}
+
+	private static final class ShutdownHandler extends Thread
+	{
+		private final Thread t = Thread.currentThread();
+
+		ShutdownHandler register()
+		{
+			Runtime.getRuntime().addShutdownHook(this);
+			return this;
+		}
+
+		void unregister()
+		{
+			Runtime.getRuntime().removeShutdownHook(this);
+		}
+
+		public void run()
+		{
+			t.interrupt();
+		}
+	}
+}